@@ -0,0 +1,443 @@
+package darwin;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Plays many small matches at once. Every match gets its own world, laid out
+ * like a GridEngine board with its two rings of WALL squares, but the boards
+ * of all the worlds sit one after another in a single array, as do the
+ * creatures, so a thread can play thousands of 15 x 15 matches without making
+ * an engine and its arrays per match. giveEachCreatureOneTurn steps every
+ * world by one round; simulate and playOut play the worlds one after another.
+ *
+ * Each world keeps the seed and species of its Match and plays exactly as
+ * Match.play would: the same placement, turn order and random bits, so the
+ * results are the same. Turns are looked up in the species' TransitionTable
+ * and interpreted when the table does not cover them.
+ */
+public final class BatchEngine {
+
+	private static final int EMPTY = GridEngine.EMPTY;
+	private static final int RING = GridEngine.RING;
+
+	private final Match[] matches;
+	private final int width;
+	private final int height;
+	private final int stride;
+	private final int[] offset;
+	private final int cells; // squares per padded board
+	private final int capacity; // creatures per world
+	private final int maxSpecies;
+	private final int instructionBudget;
+	private final BudgetPolicy budgetPolicy;
+
+	// species s of world w is slot w * maxSpecies + s
+	private final Species[] species;
+	private final int[][] code;
+	private final TransitionTable[] tables;
+
+	// board of world w: cellSpecies[w * cells ...], holding the world's own
+	// species numbers; occupant holds the creature's number in its world
+	private final short[] cellSpecies;
+	private final int[] occupant;
+
+	// creature c of world w is w * capacity + c; cellOf is an index into
+	// cellSpecies
+	private final byte[] dirOf;
+	private final short[] pcOf;
+	private final int[] cellOf;
+	private final int[] count;
+
+	private final long[] seed;
+	private long round;
+	private final long[] stoppedAt; // per world, as GridEngine.stoppedAt
+
+	/**
+	 * Set up one world for each match and place its creatures.
+	 *
+	 * @throws IllegalArgumentException if there are no matches, they do not
+	 *         all have the same world size, population, rounds and budget, or
+	 *         the creatures do not fit
+	 */
+	public BatchEngine(Match[] matches) {
+		if (matches.length == 0) {
+			throw new IllegalArgumentException("there are no matches.");
+		}
+		Match first = matches[0];
+		int most = 0;
+		for (Match match : matches) {
+			if (match.width() != first.width() || match.height() != first.height()
+					|| match.creaturesPerSpecies() != first.creaturesPerSpecies()
+					|| match.rounds() != first.rounds() || match.instructionBudget() != first.instructionBudget()
+					|| match.budgetPolicy() != first.budgetPolicy()) {
+				throw new IllegalArgumentException("matches in a batch must have the same settings.");
+			}
+			most = Math.max(most, match.size());
+		}
+		this.matches = matches.clone();
+		width = first.width();
+		height = first.height();
+		instructionBudget = first.instructionBudget();
+		budgetPolicy = first.budgetPolicy();
+		maxSpecies = most;
+
+		stride = width + 2 * RING;
+		offset = new int[4];
+		offset[Position.NORTH] = -stride;
+		offset[Position.EAST] = 1;
+		offset[Position.SOUTH] = stride;
+		offset[Position.WEST] = -1;
+		cells = stride * (height + 2 * RING);
+		capacity = width * height;
+		if ((long) cells * matches.length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many worlds in one batch.");
+		}
+
+		int worlds = matches.length;
+		species = new Species[worlds * maxSpecies];
+		code = new int[worlds * maxSpecies][];
+		tables = new TransitionTable[worlds * maxSpecies];
+		cellSpecies = new short[worlds * cells];
+		occupant = new int[worlds * cells];
+		dirOf = new byte[worlds * capacity];
+		pcOf = new short[worlds * capacity];
+		cellOf = new int[worlds * capacity];
+		count = new int[worlds];
+		seed = new long[worlds];
+		stoppedAt = new long[worlds];
+
+		Arrays.fill(cellSpecies, (short) GridEngine.WALL);
+		Arrays.fill(occupant, EMPTY);
+		for (int w = 0; w < worlds; w++) {
+			for (int y = 0; y < height; y++) {
+				int row = w * cells + (y + RING) * stride + RING;
+				Arrays.fill(cellSpecies, row, row + width, (short) EMPTY);
+			}
+			for (int s = 0; s < matches[w].size(); s++) {
+				Species sp = matches[w].species(s);
+				if (sp.code().length > Short.MAX_VALUE) {
+					throw new IllegalArgumentException("program of " + sp.getName() + " is too long.");
+				}
+				species[w * maxSpecies + s] = sp;
+				code[w * maxSpecies + s] = sp.code(instructionBudget);
+				tables[w * maxSpecies + s] = sp.transitions(instructionBudget);
+			}
+			populate(w);
+		}
+	}
+
+	/*
+	 * Seed world w and place its creatures as GridEngine.populate does.
+	 */
+	private void populate(int w) {
+		Match match = matches[w];
+		int perSpecies = match.creaturesPerSpecies();
+		SplittableRandom rand = new SplittableRandom(match.seed());
+		seed[w] = rand.nextLong();
+		int[] squares = Placement.sample(width * height, match.size() * perSpecies, rand);
+		for (int s = 0; s < match.size(); s++) {
+			for (int j = 0; j < perSpecies; j++) {
+				int square = squares[s * perSpecies + j];
+				int cell = w * cells + (square / width + RING) * stride + square % width + RING;
+				int c = count[w]++;
+				int k = w * capacity + c;
+				cellSpecies[cell] = (short) s;
+				occupant[cell] = c;
+				dirOf[k] = (byte) rand.nextInt(4);
+				pcOf[k] = 1;
+				cellOf[k] = cell;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of worlds, one per match.
+	 */
+	public int worlds() {
+		return matches.length;
+	}
+
+	/**
+	 * Returns the number of rounds played so far.
+	 */
+	public long round() {
+		return round;
+	}
+
+	/**
+	 * Returns the number of creatures of species s in world w.
+	 */
+	public int population(int w, int s) {
+		int n = 0;
+		for (int k = w * capacity; k < w * capacity + count[w]; k++) {
+			if (cellSpecies[cellOf[k]] == s) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the round world w stopped playing at, as GridEngine.stoppedAt
+	 * does: round() unless the last playOut skipped the rest of its rounds.
+	 */
+	public long stoppedAt(int w) {
+		return stoppedAt[w];
+	}
+
+	/**
+	 * Returns the survivors of each species in world w, and the rounds it
+	 * played.
+	 */
+	public MatchResult result(int w) {
+		int[] survivors = new int[matches[w].size()];
+		for (int s = 0; s < survivors.length; s++) {
+			survivors[s] = population(w, s);
+		}
+		return new MatchResult(survivors, (int) stoppedAt[w]);
+	}
+
+	/**
+	 * Runs every world for the given number of rounds. The worlds do not
+	 * affect each other, so each is played through all the rounds before the
+	 * next, which keeps one small board at a time in the cache.
+	 */
+	public void simulate(int rounds) {
+		for (int w = 0; w < matches.length; w++) {
+			for (int r = 0; r < rounds; r++) {
+				playRound(w, round + r);
+			}
+		}
+		round += rounds;
+		Arrays.fill(stoppedAt, round);
+	}
+
+	/**
+	 * Runs every world for the given number of rounds, like simulate, but
+	 * stops each world as soon as its populations cannot change any more, by
+	 * the same rules and at the same round as GridEngine.playOut. The state
+	 * hash of a world is worked out afresh after each of its rounds, which
+	 * costs about as much as the round on a board this small.
+	 */
+	public void playOut(int rounds) {
+		for (int w = 0; w < matches.length; w++) {
+			playOut(w, rounds);
+		}
+		round += rounds;
+	}
+
+	/*
+	 * Plays world w from round() for up to rounds rounds, as GridEngine.playOut
+	 * does, and records where it stopped.
+	 */
+	private void playOut(int w, int rounds) {
+		long end = round + rounds;
+		long start = round;
+		long r = round;
+		long[] seen = new long[GridEngine.LONGEST_CYCLE + 1]; // the hash after round r is at r % seen.length
+		int[] snapshot = null; // the state to confirm a cycle against
+		long snapshotRound = 0;
+		int period = 0;
+		int[] alive = new int[maxSpecies];
+
+		long hash = stateHash(w);
+		while (r < end) {
+			if (census(w, alive) <= 1) {
+				stoppedAt[w] = r;
+				return;
+			}
+			seen[(int) (r % seen.length)] = hash;
+			playRound(w, r++);
+			hash = stateHash(w);
+
+			if (snapshot != null && r == snapshotRound + period) {
+				if (Arrays.equals(snapshot, snapshotState(w))) {
+					for (long left = (end - r) % period; left > 0; left--) {
+						playRound(w, r++);
+					}
+					stoppedAt[w] = r;
+					return;
+				}
+				// the hashes collided
+				snapshot = null;
+			}
+			if (snapshot == null && !randomLeft(w, alive)) {
+				long furthest = Math.min(GridEngine.LONGEST_CYCLE, r - start);
+				for (int p = 1; p <= furthest; p++) {
+					if (seen[(int) ((r - p) % seen.length)] == hash) {
+						if (r + p <= end) {
+							snapshot = snapshotState(w);
+							snapshotRound = r;
+							period = p;
+						}
+						break;
+					}
+				}
+			}
+		}
+		stoppedAt[w] = end;
+	}
+
+	/*
+	 * Counts the creatures of each species of world w into alive, and returns
+	 * the number of species with creatures left.
+	 */
+	private int census(int w, int[] alive) {
+		Arrays.fill(alive, 0);
+		for (int k = w * capacity; k < w * capacity + count[w]; k++) {
+			alive[cellSpecies[cellOf[k]]]++;
+		}
+		int n = 0;
+		for (int s = 0; s < alive.length; s++) {
+			if (alive[s] > 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/*
+	 * Whether any species of world w with creatures left, as counted by
+	 * census, uses ifrandom.
+	 */
+	private boolean randomLeft(int w, int[] alive) {
+		for (int s = 0; s < matches[w].size(); s++) {
+			if (alive[s] > 0 && species[w * maxSpecies + s].usesRandom()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * The state hash of world w, with the keys GridEngine gives the same
+	 * creatures on its own board.
+	 */
+	private long stateHash(int w) {
+		long hash = 0;
+		for (int c = 0; c < count[w]; c++) {
+			int k = w * capacity + c;
+			int cell = cellOf[k];
+			hash ^= GridEngine.stateKey(c, cell - w * cells, cellSpecies[cell], dirOf[k], pcOf[k]);
+		}
+		return hash;
+	}
+
+	/*
+	 * The square, species, direction and step of every creature of world w.
+	 */
+	private int[] snapshotState(int w) {
+		int[] state = new int[2 * count[w]];
+		for (int c = 0; c < count[w]; c++) {
+			int k = w * capacity + c;
+			int cell = cellOf[k];
+			state[2 * c] = cell;
+			state[2 * c + 1] = (cellSpecies[cell] << 18) | (dirOf[k] << 16) | pcOf[k];
+		}
+		return state;
+	}
+
+	/**
+	 * Gives each creature of every world one turn, world by world.
+	 */
+	public void giveEachCreatureOneTurn() {
+		for (int w = 0; w < matches.length; w++) {
+			playRound(w, round);
+		}
+		round++;
+		Arrays.fill(stoppedAt, round);
+	}
+
+	/*
+	 * Gives each creature of world w its turn in the given round.
+	 */
+	private void playRound(int w, long round) {
+		int first = w * capacity;
+		int species0 = w * maxSpecies;
+		long worldSeed = seed[w];
+		int creatures = count[w]; // a round never adds creatures
+
+		for (int c = 0; c < creatures; c++) {
+			int k = first + c;
+			int cell = cellOf[k];
+			int s = cellSpecies[cell];
+			int dir = dirOf[k];
+			int step = offset[dir];
+			int front = cell + step;
+			int pc = pcOf[k];
+
+			// work out the action as GridEngine.next does for TABLE
+			int at;
+			int sensor = GridEngine.sense(cellSpecies, front, step, s);
+			TransitionTable table = tables[species0 + s];
+			long bits = table.needsRandom(pc, sensor) ? RandomBits.forTurn(worldSeed, round, c) : 0;
+			int entry = table.lookup(pc, sensor, bits);
+			if (entry != TransitionTable.FALLBACK && TransitionTable.steps(entry) < instructionBudget) {
+				at = TransitionTable.actionPc(entry);
+			} else {
+				at = GridEngine.interpret(code[species0 + s], cellSpecies, front, step, s, pc, instructionBudget, worldSeed,
+						round, c);
+				if (at <= -CompiledProgram.OUT_OF_BUDGET) {
+					at += CompiledProgram.OUT_OF_BUDGET;
+					if (budgetPolicy == BudgetPolicy.FLAG) {
+						species[species0 + s].flag();
+					}
+				}
+			}
+			if (at < 0) {
+				pcOf[k] = (short) -at;
+				continue;
+			}
+
+			int instruction = code[species0 + s][at];
+			switch (instruction & PackedCode.OPCODE_MASK) {
+
+			case Instruction.HOP:
+				if (cellSpecies[front] == EMPTY) {
+					cellSpecies[cell] = EMPTY;
+					occupant[cell] = EMPTY;
+					cellSpecies[front] = (short) s;
+					occupant[front] = c;
+					cellOf[k] = front;
+				}
+				break;
+
+			case Instruction.LEFT:
+				dirOf[k] = (byte) Creature.leftFrom(dir);
+				break;
+
+			case Instruction.RIGHT:
+				dirOf[k] = (byte) Creature.rightFrom(dir);
+				break;
+
+			case Instruction.INFECT:
+				int ahead = cellSpecies[front];
+				if (ahead >= 0 && ahead != s) {
+					cellSpecies[front] = (short) s;
+					pcOf[first + occupant[front]] = (short) GridEngine.infectStart(instruction);
+				}
+				break;
+			}
+			pcOf[k] = (short) (at + 1);
+		}
+	}
+
+	/**
+	 * Play the matches together on one BatchEngine, stopping each once its
+	 * populations are settled, as Match.play does.
+	 *
+	 * @return the result of each match, in order.
+	 * @throws IllegalArgumentException if the matches do not all have the same
+	 *         settings
+	 */
+	public static MatchResult[] play(Match[] matches) {
+		BatchEngine engine = new BatchEngine(matches);
+		engine.playOut(matches[0].rounds());
+		MatchResult[] results = new MatchResult[matches.length];
+		for (int w = 0; w < matches.length; w++) {
+			results[w] = engine.result(w);
+		}
+		return results;
+	}
+}
@@ -0,0 +1,16 @@
+package darwin;
+
+/**
+ * What happens to a creature that executes its whole per-turn instruction
+ * budget without reaching a hop, left, right, or infect instruction.
+ * 
+ * @see World#setInstructionBudget(int, BudgetPolicy)
+ */
+public enum BudgetPolicy {
+
+	/** The creature loses its turn and resumes where it stopped next turn. */
+	FORFEIT,
+
+	/** As FORFEIT, and the creature's species is flagged as misbehaving. */
+	FLAG
+}
@@ -0,0 +1,440 @@
+package darwin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The behavior of a species program in a canonical form, so that programs
+ * that differ only in dead steps, numbering or chains of go instructions are
+ * recognized as the same.
+ *
+ * A program is read as a state machine. Within a turn a creature senses one
+ * of seven situations, the same at every test, so from a step it resumes at
+ * the tests and go instructions lead to an action, an ifrandom or an endless
+ * loop depending only on the situation. The machine has a node for
+ * <ul>
+ * <li>each step a creature can resume at, with a successor per situation:
+ * where the creature ends up when it senses that situation;</li>
+ * <li>each action step, with the step to resume at after it and, for infect,
+ * the step the infected creature starts at;</li>
+ * <li>each ifrandom step in each situation, with a successor for each way
+ * the random bit can go, still in that situation;</li>
+ * <li>a turn that never reaches an action.</li>
+ * </ul>
+ * Nodes are labelled by what they are (resume, stuck, ifrandom or the
+ * action's opcode). The machine is minimized like a DFA, by Moore's partition
+ * refinement: nodes start out grouped by label and groups are split until all
+ * the nodes of a group have successors in the same groups. The groups are
+ * then numbered in the order a breadth first walk from step 1 meets them, so
+ * the form does not depend on how the program numbered its steps.
+ *
+ * Two programs with the same form make the same moves with the same random
+ * bits in every situation, as long as no creature runs out of instruction
+ * budget: like ProgramOptimizer, the form does not count the tests and go
+ * instructions executed in a turn.
+ *
+ * A program that can go round a cycle without acting is different: a turn
+ * that never reaches the STUCK node, or that keeps drawing the wrong random
+ * bits, runs out of budget, and where it stops, and so where the creature
+ * resumes next turn, depends on every test and go on the way. Its form is
+ * therefore its exact code, labelled EXACT, and it is only the same as a
+ * program with identical code. A program without such a cycle visits
+ * each step at most once a turn, so it only runs out of a budget smaller
+ * than its code.
+ */
+public final class CanonicalProgram {
+
+	// node labels besides the action opcodes
+	private static final int RESUME = -1;
+	private static final int STUCK = -2;
+	private static final int RANDOM = Instruction.IFRANDOM;
+	private static final int EXACT = -3;
+
+	// the valid sensor values, as in ProgramAnalysis
+	private static final int[] SITUATIONS = {
+			TransitionTable.SENSE_WALL, TransitionTable.SENSE_EMPTY, TransitionTable.SENSE_SAME,
+			TransitionTable.SENSE_ENEMY, TransitionTable.SENSE_EMPTY + TransitionTable.SENSE_ENEMY2,
+			TransitionTable.SENSE_SAME + TransitionTable.SENSE_ENEMY2,
+			TransitionTable.SENSE_ENEMY + TransitionTable.SENSE_ENEMY2};
+
+	// for each group in walk order: its label, its number of successors and
+	// the walk numbers of the successors; or EXACT, the number of steps and
+	// the code of each step
+	private final int[] form;
+	private final long hash;
+
+	private CanonicalProgram(int[] form) {
+		this.form = form;
+		long h = 0x9e3779b97f4a7c15L;
+		for (int v : form) {
+			h = RandomBits.mix64(h ^ v);
+		}
+		hash = h;
+	}
+
+	/**
+	 * Return the canonical form of code, packed as Species.code() is: slot 0
+	 * unused and the last slot "go 1". Superinstructions are read as the test
+	 * they start with.
+	 */
+	public static CanonicalProgram of(int[] code) {
+		Machine machine = new Machine(code);
+		machine.build();
+		if (machine.loops()) {
+			return exact(code);
+		}
+		int[] block = minimize(machine.label, machine.succ);
+		return new CanonicalProgram(walk(machine.label, machine.succ, block));
+	}
+
+	/**
+	 * Return the form of code that only equals the form of identical code,
+	 * packed as for of(). It is what of() returns for a program that can loop
+	 * without acting.
+	 */
+	static CanonicalProgram exact(int[] code) {
+		int[] form = new int[code.length];
+		form[0] = EXACT;
+		form[1] = code.length - 2;
+		System.arraycopy(code, 1, form, 2, code.length - 2);
+		return new CanonicalProgram(form);
+	}
+
+	/**
+	 * Returns a 64-bit hash of the form. Programs with the same behavior have
+	 * the same hash; use equals to be sure two with the same hash do.
+	 */
+	public long hash() {
+		return hash;
+	}
+
+	/**
+	 * Returns whether the program can loop without acting, so that the form
+	 * is its exact code.
+	 */
+	public boolean isExact() {
+		return form[0] == EXACT;
+	}
+
+	/**
+	 * Returns the number of states in the minimized machine, or the number of
+	 * steps in the code if the form is exact.
+	 */
+	public int states() {
+		if (isExact()) {
+			return form[1];
+		}
+		int n = 0;
+		for (int i = 0; i < form.length; i += 2 + form[i + 1]) {
+			n++;
+		}
+		return n;
+	}
+
+	public boolean equals(Object other) {
+		return other instanceof CanonicalProgram && ((CanonicalProgram) other).hash == hash
+				&& Arrays.equals(((CanonicalProgram) other).form, form);
+	}
+
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	public String toString() {
+		return String.format("%016x", hash);
+	}
+
+	/*
+	 * The unminimized machine of a program, holding only the nodes reachable
+	 * from resuming at step 1.
+	 */
+	private static class Machine {
+		private final int[] code;
+		final ArrayList<Integer> label = new ArrayList<Integer>();
+		final ArrayList<int[]> succ = new ArrayList<int[]>();
+
+		// node numbers by what they stand for, -1 until made
+		private final int[] resumeNode;
+		private final int[] actionNode;
+		private final int[] randomNode; // by step * SITUATIONS.length + situation
+		private int stuckNode = -1;
+
+		// nodes made but whose successors are not filled in yet
+		private final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+		private final ArrayList<Integer> stepOf = new ArrayList<Integer>();
+		private final ArrayList<Integer> situationOf = new ArrayList<Integer>();
+
+		Machine(int[] code) {
+			this.code = code;
+			resumeNode = new int[code.length];
+			actionNode = new int[code.length];
+			randomNode = new int[code.length * SITUATIONS.length];
+			Arrays.fill(resumeNode, -1);
+			Arrays.fill(actionNode, -1);
+			Arrays.fill(randomNode, -1);
+		}
+
+		void build() {
+			resume(1);
+			while (!pending.isEmpty()) {
+				int node = pending.poll();
+				int pc = stepOf.get(node);
+				int[] next;
+				switch (label.get(node)) {
+					case RESUME :
+						next = new int[SITUATIONS.length];
+						for (int k = 0; k < next.length; k++) {
+							next[k] = settle(pc, k);
+						}
+						break;
+					case RANDOM :
+						int k = situationOf.get(node);
+						next = new int[] {settle(PackedCode.addressOf(code[pc]), k), settle(pc + 1, k)};
+						break;
+					case Instruction.INFECT :
+						next = new int[] {resume(pc + 1), resume(GridEngine.infectStart(code[pc]))};
+						break;
+					default :
+						next = new int[] {resume(pc + 1)};
+						break;
+				}
+				succ.set(node, next);
+			}
+		}
+
+		/*
+		 * Whether a turn can go on without acting for ever: the STUCK node is
+		 * reachable, or ifrandom nodes lead to each other in a cycle. Ifrandom
+		 * nodes that lead nowhere but to actions are peeled off until none
+		 * are left, or only those on a cycle.
+		 */
+		boolean loops() {
+			if (stuckNode >= 0) {
+				return true;
+			}
+			int n = label.size();
+			int[] into = new int[n];
+			for (int v = 0; v < n; v++) {
+				if (label.get(v) == RANDOM) {
+					for (int w : succ.get(v)) {
+						if (label.get(w) == RANDOM) {
+							into[w]++;
+						}
+					}
+				}
+			}
+			ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+			int randoms = 0;
+			for (int v = 0; v < n; v++) {
+				if (label.get(v) == RANDOM) {
+					randoms++;
+					if (into[v] == 0) {
+						free.add(v);
+					}
+				}
+			}
+			while (!free.isEmpty()) {
+				int v = free.poll();
+				randoms--;
+				for (int w : succ.get(v)) {
+					if (label.get(w) == RANDOM && --into[w] == 0) {
+						free.add(w);
+					}
+				}
+			}
+			return randoms > 0;
+		}
+
+		private int node(int label, int pc, int situation) {
+			int node = this.label.size();
+			this.label.add(label);
+			succ.add(new int[0]);
+			stepOf.add(pc);
+			situationOf.add(situation);
+			pending.add(node);
+			return node;
+		}
+
+		private int resume(int pc) {
+			if (resumeNode[pc] < 0) {
+				resumeNode[pc] = node(RESUME, pc, -1);
+			}
+			return resumeNode[pc];
+		}
+
+		/*
+		 * The node a creature resuming at pc reaches in situation k, following
+		 * tests and go instructions.
+		 */
+		private int settle(int pc, int k) {
+			int sensor = SITUATIONS[k];
+			int front = sensor & 3;
+			boolean[] seen = new boolean[code.length];
+			while (!seen[pc]) {
+				seen[pc] = true;
+				int op = ProgramOptimizer.unfused(PackedCode.opcodeOf(code[pc]));
+				int address = PackedCode.addressOf(code[pc]);
+				boolean taken;
+				switch (op) {
+					case Instruction.HOP :
+					case Instruction.LEFT :
+					case Instruction.RIGHT :
+					case Instruction.INFECT :
+						if (actionNode[pc] < 0) {
+							actionNode[pc] = node(op, pc, -1);
+						}
+						return actionNode[pc];
+					case Instruction.IFRANDOM :
+						int r = pc * SITUATIONS.length + k;
+						if (randomNode[r] < 0) {
+							randomNode[r] = node(RANDOM, pc, k);
+						}
+						return randomNode[r];
+					case Instruction.IFEMPTY :
+						taken = front == TransitionTable.SENSE_EMPTY;
+						break;
+					case Instruction.IFWALL :
+						taken = front == TransitionTable.SENSE_WALL;
+						break;
+					case Instruction.IFSAME :
+						taken = front == TransitionTable.SENSE_SAME;
+						break;
+					case Instruction.IFENEMY :
+						taken = front == TransitionTable.SENSE_ENEMY;
+						break;
+					case Instruction.IF2ENEMY :
+						taken = (sensor & TransitionTable.SENSE_ENEMY2) != 0;
+						break;
+					case Instruction.GO :
+						taken = true;
+						break;
+					default :
+						// not a valid instruction, the creature stays on it
+						return stuck();
+				}
+				pc = taken ? address : pc + 1;
+			}
+			return stuck();
+		}
+
+		private int stuck() {
+			if (stuckNode < 0) {
+				stuckNode = node(STUCK, 0, -1);
+			}
+			return stuckNode;
+		}
+	}
+
+	/*
+	 * Moore's partition refinement: returns the group of every node once no
+	 * group can be split any further.
+	 */
+	private static int[] minimize(ArrayList<Integer> label, ArrayList<int[]> succ) {
+		int n = label.size();
+		int[] block = new int[n];
+		int blocks = 0;
+		HashMap<Integer, Integer> byLabel = new HashMap<Integer, Integer>();
+		for (int v = 0; v < n; v++) {
+			Integer b = byLabel.get(label.get(v));
+			if (b == null) {
+				b = blocks++;
+				byLabel.put(label.get(v), b);
+			}
+			block[v] = b;
+		}
+
+		while (true) {
+			HashMap<Signature, Integer> bySignature = new HashMap<Signature, Integer>();
+			int[] next = new int[n];
+			for (int v = 0; v < n; v++) {
+				int[] s = succ.get(v);
+				int[] key = new int[s.length + 1];
+				key[0] = block[v];
+				for (int i = 0; i < s.length; i++) {
+					key[i + 1] = block[s[i]];
+				}
+				Signature signature = new Signature(key);
+				Integer b = bySignature.get(signature);
+				if (b == null) {
+					b = bySignature.size();
+					bySignature.put(signature, b);
+				}
+				next[v] = b;
+			}
+			block = next;
+			if (bySignature.size() == blocks) {
+				return block;
+			}
+			blocks = bySignature.size();
+		}
+	}
+
+	/*
+	 * Numbers the groups breadth first from the group of node 0, resuming at
+	 * step 1, and writes out each group's label and successors.
+	 */
+	private static int[] walk(ArrayList<Integer> label, ArrayList<int[]> succ, int[] block) {
+		int blocks = 0;
+		for (int b : block) {
+			blocks = Math.max(blocks, b + 1);
+		}
+		int[] member = new int[blocks]; // a node of each group
+		for (int v = block.length - 1; v >= 0; v--) {
+			member[block[v]] = v;
+		}
+		int[] number = new int[blocks];
+		Arrays.fill(number, -1);
+
+		int[] order = new int[blocks];
+		int numbered = 0;
+		number[block[0]] = numbered;
+		order[numbered++] = block[0];
+		int size = 0;
+		for (int i = 0; i < numbered; i++) {
+			int[] s = succ.get(member[order[i]]);
+			size += 2 + s.length;
+			for (int v : s) {
+				if (number[block[v]] < 0) {
+					number[block[v]] = numbered;
+					order[numbered++] = block[v];
+				}
+			}
+		}
+
+		int[] form = new int[size];
+		int at = 0;
+		for (int i = 0; i < numbered; i++) {
+			int v = member[order[i]];
+			int[] s = succ.get(v);
+			form[at++] = label.get(v);
+			form[at++] = s.length;
+			for (int w : s) {
+				form[at++] = number[block[w]];
+			}
+		}
+		return form;
+	}
+
+	/*
+	 * An int[] compared by contents, as a HashMap key.
+	 */
+	private static class Signature {
+		private final int[] values;
+		private final int hash;
+
+		Signature(int[] values) {
+			this.values = values;
+			hash = Arrays.hashCode(values);
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Signature && Arrays.equals(((Signature) other).values, values);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
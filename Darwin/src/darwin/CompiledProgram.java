@@ -0,0 +1,32 @@
+package darwin;
+
+/**
+ * A species program compiled to JVM bytecode by ProgramCompiler. Running it
+ * gives the same answer as GridEngine.decide, but the program's control flow
+ * is a switch on the starting step followed by direct jumps, which the JIT
+ * can optimize like any other method.
+ */
+public interface CompiledProgram {
+
+	/**
+	 * Added to the step in the result when a creature used up its whole
+	 * instruction budget without acting.
+	 */
+	public static final int OUT_OF_BUDGET = 0x10000;
+
+	/**
+	 * Run the program from step pc up to its next action.
+	 * 
+	 * @param pc the step to start at
+	 * @param sensor what the creature senses, as in TransitionTable: SENSE_WALL,
+	 *        SENSE_EMPTY, SENSE_SAME or SENSE_ENEMY, plus SENSE_ENEMY2 if the
+	 *        square two ahead holds an enemy
+	 * @param bits the turn's random bits, RandomBits.forTurn for the creature;
+	 *        ignored by programs without ifrandom
+	 * @param budget the most instructions to execute
+	 * @return the step of the action reached; or minus the step to resume from
+	 *         when the creature does not act, with OUT_OF_BUDGET added to the
+	 *         step if that is because the budget ran out
+	 */
+	public int run(int pc, int sensor, long bits, int budget);
+}
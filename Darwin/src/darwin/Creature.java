@@ -1,22 +1,21 @@
 package darwin;
 
-import java.io.*;
-import java.util.*;
-
 /**
  * This class represents one creature on the board. Each creature must remember
  * its species, position, direction, and the world in which it is living.
  * In addition, the Creature must remember the next instruction out of its
  * program to execute.
  * The creature is also responsible for making itself appear in the WorldMap. In
- * fact, you should only update the WorldMap from inside the Creature class.
+ * fact, you should only update the WorldMap from inside the Creature class, and
+ * only through the RenderSink of the creature's World.
  */
 
 public class Creature {
 
 	private Species species;
+	private int speciesId; // cached species.getId(), compared by the if tests
 	private World world;
-	private Position pos;
+	private int cell; // the creature's square, numbered by world.grid()
 	private int dir;
 	private int nextInstructNum;
 
@@ -29,9 +28,12 @@ public class Creature {
 	public Creature(Species species, World world, Position pos, int dir) {
 		this.species = species;
 		this.world = world;
-		this.pos = pos;
+		this.cell = world.grid().index(pos);
 		this.dir = dir;
 
+		// creatures tell friend from enemy by species id
+		speciesId = SpeciesRegistry.shared().idOf(species);
+
 		//set the creature's next instruction as the species' program's first instruction
 		nextInstructNum = 1;
 
@@ -70,7 +72,7 @@ public class Creature {
 	 * @return the creature's position
 	 */
 	public Position position() {
-		return pos;
+		return world.grid().position(cell);
 	}
 
 	/**
@@ -79,257 +81,221 @@ public class Creature {
 	 * @param pos
 	 */
 	public void setPosition(Position pos) {
-		this.pos = pos;
+		this.cell = world.grid().index(pos);
 	}
 
 	/**
 	 * Execute steps from the Creature's program
 	 *   starting at step #1
 	 *   continue until a hop, left, right, or infect instruction is executed.
+	 * 
+	 * At most world.instructionBudget() instructions are executed in one turn.
+	 * A creature that runs out of budget before reaching an action forfeits the
+	 * turn, and under BudgetPolicy.FLAG its species is also flagged. Running
+	 * off the end of the program continues at step #1.
+	 * 
+	 * Instructions are fetched from the species' packed code rather than
+	 * through programStep.
 	 */
 	public void takeOneTurn() {
 
-		//grab instruction from program
-		Instruction nextInstruction;
-		nextInstruction = species.programStep(nextInstructNum);
+		Grid grid = world.grid();
+		RenderSink sink = world.renderSink();
+		int adjacentSq = grid.adjacent(cell, dir);
 
-		//identify the opcode and address of the instruction
-		int tempOpcode = nextInstruction.getOpcode();
-		int tempAddress = nextInstruction.getAddress();
+		int budget = world.instructionBudget();
+		int[] code = species.code(budget);
+		for (int executed = 0; executed < budget; executed++) {
 
-		Position adjacentSq = pos.getAdjacent(dir);
-		String speciesName = species.getName();
+			//grab instruction from program; the slot past the end is "go 1"
+			int nextInstruction = code[nextInstructNum];
 
-		//put the creature on the WorldMap
-		world.set(pos, this);
-		WorldMap.displaySquare(pos, species.getSpeciesChar(), dir, species.getColor());
+			//identify the opcode and address of the instruction
+			int tempOpcode = nextInstruction & PackedCode.OPCODE_MASK;
+			int tempAddress = nextInstruction >>> PackedCode.OPCODE_BITS;
 
-		//HOP
-		if( tempOpcode == 1) {
+			// superinstructions are run as the test they start with
+			switch (ProgramOptimizer.unfused(tempOpcode)) {
 
-			// only moves if the adjacent square exists in the world matrix
-			// and is unoccupied
-			if( world.inRange(adjacentSq) && (world.get(adjacentSq) == null)) {
+			case Instruction.HOP:
 
-				// make our old position null/empty on the WorldMap
-				world.set(pos, null);
-				WorldMap.displaySquare(pos, ' ', 0, "");	
+				// only moves if the adjacent square exists in the world
+				// and is unoccupied
+				if( adjacentSq != Grid.WALL && world.get(adjacentSq) == null) {
 
-				// move the creature one square in its current direction
-				setPosition(adjacentSq);
-			}
-
-			// update our new position on the WorldMap
-			world.set(pos, this);
-			WorldMap.displaySquare(pos, species.getSpeciesChar(), dir, species.getColor());
+					// make our old position null/empty on the WorldMap
+					world.set(cell, null);
+					sink.displaySquare(grid.position(cell), ' ', 0, "");	
 
-			nextInstructNum ++;
+					// move the creature one square in its current direction
+					cell = adjacentSq;
+				}
 
-			//end the turn
-			return;
+				// update our new position on the WorldMap
+				world.set(cell, this);
+				sink.displaySquare(grid.position(cell), species.getSpeciesChar(), dir, species.getColor());
 
-			//LEFT	
-		}else if( tempOpcode == 2) {
-			setDirection(leftFrom(dir));
+				nextInstructNum ++;
 
-			world.set(pos, null);
-			WorldMap.displaySquare(pos, ' ', 0, "");
+				//end the turn
+				return;
 
-			world.set(pos, this);
-			WorldMap.displaySquare(pos, species.getSpeciesChar(), dir, species.getColor());
+			case Instruction.LEFT:
+				setDirection(leftFrom(dir));
 
-			nextInstructNum ++;
-			return;
+				world.set(cell, null);
+				sink.displaySquare(grid.position(cell), ' ', 0, "");
 
-			//RIGHT
-		}else if( tempOpcode == 3) {
-			setDirection(rightFrom(dir));
+				world.set(cell, this);
+				sink.displaySquare(grid.position(cell), species.getSpeciesChar(), dir, species.getColor());
 
-			world.set(pos, null);
-			WorldMap.displaySquare(pos, ' ', 0, "");
+				nextInstructNum ++;
+				return;
 
-			world.set(pos, this);
-			WorldMap.displaySquare(pos, species.getSpeciesChar(), dir, species.getColor());
+			case Instruction.RIGHT:
+				setDirection(rightFrom(dir));
 
-			nextInstructNum ++;
-			return;
+				world.set(cell, null);
+				sink.displaySquare(grid.position(cell), ' ', 0, "");
 
-			//INFECT
-		}else if( tempOpcode == 4) {			
+				world.set(cell, this);
+				sink.displaySquare(grid.position(cell), species.getSpeciesChar(), dir, species.getColor());
 
-			// if the adjacent square exists and is occupied,
-			if( world.inRange(adjacentSq) && world.get(adjacentSq) != null) {
+				nextInstructNum ++;
+				return;
 
-				String adjName = world.get(adjacentSq).species().getName();
+			case Instruction.INFECT:
 
-				// if the adjacent square is occupied by an ENEMY,
+				// if the adjacent square exists and is occupied by an ENEMY,
 				// (not of the same creature) infect the enemy!
-				if (!adjName.equals(speciesName)) {
+				if( adjacentSq != Grid.WALL && world.get(adjacentSq) != null
+						&& world.get(adjacentSq).speciesId != speciesId) {
 
-					// create the new creature
+					// create the new creature, sometimes as a mutant of
+					// our species
 					Creature infectedCreature = world.get(adjacentSq);
-					infectedCreature.species = species;
+					Species newSpecies = species;
+					double rate = world.mutationRate();
+					if (rate > 0 && world.random().nextDouble() < rate) {
+						newSpecies = world.addMutant(species, Mutator.mutate(species, world.random()));
+					}
+					infectedCreature.species = newSpecies;
+					infectedCreature.speciesId = newSpecies.getId();
 					infectedCreature.world = world;
-					infectedCreature.pos = adjacentSq;
+					infectedCreature.cell = adjacentSq;
 
 					// remove the old creature from the World
 					world.set(adjacentSq, null);
-					WorldMap.displaySquare(adjacentSq, ' ', 0, "");
+					sink.displaySquare(grid.position(adjacentSq), ' ', 0, "");
 
 					// put it in the world, adjacent to our original creature
 					world.set(adjacentSq, infectedCreature);
-					WorldMap.displaySquare(adjacentSq, species.getSpeciesChar(), infectedCreature.dir, species.getColor());
+					sink.displaySquare(grid.position(adjacentSq), newSpecies.getSpeciesChar(), infectedCreature.dir, newSpecies.getColor());
 
 					// begin the newly infected creature at step n of the host's program,
-					// or start it at step 1 if no address is given
-					if ( tempAddress == 0) {
+					// or start it at step 1 if no address is given; a mutant's
+					// steps are numbered differently, so it starts at step 1
+					if ( tempAddress == 0 || newSpecies != species) {
 						infectedCreature.nextInstructNum = 1;
 					}else {
 						infectedCreature.nextInstructNum = tempAddress;
 					}	
-
-					// update the creature's next instruction
-					nextInstructNum++;
-					return;
-
 				}
 
-			}else {
+				// infect ends the turn whether or not anything was infected
 				nextInstructNum++;
 				return;
-			}
 
+			case Instruction.IFEMPTY:
 
-			//IFEMPTY
-		}else if( tempOpcode == 5) {
-
-			// if the adjacent square exists and is UNOCCUPIED,
-			// update the next instruction to the provided address
-			if( world.inRange(adjacentSq) && world.get(adjacentSq) == null) {	
-				nextInstructNum = tempAddress;
-				this.takeOneTurn();
-
-			}else { 
-				//otherwise, proceed to the next sequential instruction
-				nextInstructNum ++;
-				this.takeOneTurn();
-			}
-
-			//IFWALL
-		}else if( tempOpcode == 6) {
-
-			// if the adjacent square does not exist, (creature is facing
-			// a wall), update the next instruction to the provided address
-			if( !world.inRange(adjacentSq)) {	
-				nextInstructNum = tempAddress;
-				this.takeOneTurn();
-
-			}else { 
-				nextInstructNum ++;
-				this.takeOneTurn();
-			}
+				// if the adjacent square exists and is UNOCCUPIED,
+				// update the next instruction to the provided address,
+				// otherwise proceed to the next sequential instruction
+				if( adjacentSq != Grid.WALL && world.get(adjacentSq) == null) {	
+					nextInstructNum = tempAddress;
+				}else { 
+					nextInstructNum ++;
+				}
+				break;
 
-			//IFSAME
-		}else if( tempOpcode == 7) {
+			case Instruction.IFWALL:
 
-			// if the adjacent square exists and is occupied,
-			if( world.inRange(adjacentSq) && world.get(adjacentSq) != null) {
+				// if the adjacent square does not exist, (creature is facing
+				// a wall), update the next instruction to the provided address
+				if( adjacentSq == Grid.WALL) {	
+					nextInstructNum = tempAddress;
+				}else { 
+					nextInstructNum ++;
+				}
+				break;
 
-				String adjName = world.get(adjacentSq).species().getName();
+			case Instruction.IFSAME:
 
 				// if the adjacent square is occupied by a creature
 				// of the same species, update the next instruction to the provided address
-				if ( adjName.equals(speciesName)) {	
+				if( adjacentSq != Grid.WALL && world.get(adjacentSq) != null
+						&& world.get(adjacentSq).speciesId == speciesId) {
 					nextInstructNum = tempAddress;
-					this.takeOneTurn();
-
 				}else {
 					nextInstructNum ++;
-					this.takeOneTurn();
 				}
+				break;
 
-
-			}else {
-				nextInstructNum ++;
-				this.takeOneTurn();
-			}
-
-			//IFENEMY
-		}else if( tempOpcode == 8) {
-
-			// if the adjacent square exists and is occupied,
-			if( world.inRange(adjacentSq) && world.get(adjacentSq) != null) {
-
-				String adjName = world.get(adjacentSq).species().getName();
+			case Instruction.IFENEMY:
 
 				// if the adjacent square is occupied by a creature
 				// of a DIFFERENT species, update the next instruction 
 				// to the provided address
-				if ( !adjName.equals(speciesName)) {	
+				if( adjacentSq != Grid.WALL && world.get(adjacentSq) != null
+						&& world.get(adjacentSq).speciesId != speciesId) {
 					nextInstructNum = tempAddress;
-					this.takeOneTurn();
-
 				}else {
 					nextInstructNum ++;
-					this.takeOneTurn();
 				}
-
-
-			}else {
-				nextInstructNum ++;
-				this.takeOneTurn();
-			}
+				break;
 
 			//IFRANDOM, a.k.a. 'free will'
-		}else if( tempOpcode == 9) {
-			Random rand = new Random();
-			int int_random = rand.nextInt(100);
-
-			// if the random number is even, update the next 
-			// instruction to the provided address
-			if (int_random % 2 == 0) {
-				nextInstructNum = tempAddress;
-				this.takeOneTurn();
+			case Instruction.IFRANDOM:
 
-			}else {
-				nextInstructNum ++;
-				this.takeOneTurn();
-
-			}
+				// on a coin flip, update the next instruction to the
+				// provided address
+				if (world.random().nextBoolean()) {
+					nextInstructNum = tempAddress;
+				}else {
+					nextInstructNum ++;
+				}
+				break;
 
-			//GO	
-		}else if( tempOpcode == 10) {
-			nextInstructNum = tempAddress;
-			this.takeOneTurn();
+			case Instruction.GO:
+				nextInstructNum = tempAddress;
+				break;
 
 			//EXTRA CREDIT: IF2ENEMY
-		}else if( tempOpcode == 11) {
-
-			Position adjacentSq2 = adjacentSq.getAdjacent(dir);
+			case Instruction.IF2ENEMY:
 
-			// if the 2nd adjacent square exists and is occupied,
-			if( world.inRange(adjacentSq2) && world.get(adjacentSq2) != null) {
-
-				String adj2Name = world.get(adjacentSq2).species().getName();
+				int adjacentSq2 = (adjacentSq == Grid.WALL) ? Grid.WALL : grid.adjacent(adjacentSq, dir);
 
 				// if the 2nd adjacent square is occupied by a creature
 				// of a DIFFERENT species, update the next instruction 
 				// to the provided address
-				if ( !adj2Name.equals(speciesName)) {	
+				if( adjacentSq2 != Grid.WALL && world.get(adjacentSq2) != null
+						&& world.get(adjacentSq2).speciesId != speciesId) {
 					nextInstructNum = tempAddress;
-					this.takeOneTurn();
-
 				}else {
 					nextInstructNum ++;
-					this.takeOneTurn();
 				}
+				break;
 
-
-			}else {
-				nextInstructNum ++;
-				this.takeOneTurn();
+			default:
+				// not a valid instruction, the creature stays stuck on it
+				return;
 			}
 		}
+
+		// the budget ran out before an action was reached
+		if (world.budgetPolicy() == BudgetPolicy.FLAG) {
+			species.flag();
+		}
 	}
 
 
@@ -1,7 +1,7 @@
 package darwin;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.io.*;
 
 /**
@@ -24,10 +24,9 @@ import java.io.*;
  */
 class Darwin {
 	private World world;
-	private static int rows; 
-	private static int cols;
 	ArrayList<Creature> CreatureArray;
-	private static int numRounds = 30;
+	private DarwinConfig config;
+	private ArrayList<Species> speciesList;
 
 
 	/**
@@ -36,57 +35,69 @@ class Darwin {
 	 * @param speciesFilenames
 	 */
 	public Darwin(String[] speciesFilenames) {
+		this(speciesFilenames, new DarwinConfig());
+	}
 
-		rows = 15;
-		cols = 15;
-
-
-
-		//initialize world with constructor
-		world = new World(rows, cols);
-
-		CreatureArray = new ArrayList<Creature>();
+	/**
+	 * Takes command line input and adds them to the Darwin stimulation, with
+	 * the world size, population, rounds, seed and display taken from config.
+	 * The seed decides where the creatures are placed and every ifrandom
+	 * choice, so the same files and config always play out the same way.
+	 * 
+	 * @param speciesFilenames
+	 * @param config
+	 * @throws IllegalArgumentException if the creatures do not fit in the world
+	 */
+	public Darwin(String[] speciesFilenames, DarwinConfig config) {
+		this.config = config;
+
+		//initialize world with constructor: World is (width, height)
+		world = new World(config.width(), config.height());
+		world.setInstructionBudget(config.instructionBudget(), config.budgetPolicy());
+		world.setMutationRate(config.mutationRate());
+		if (config.isHeadless()) {
+			world.setRenderSink(HeadlessRenderSink.INSTANCE);
+		} else if (config.isBuffered()) {
+			// World is (width, height), and WorldMap is (x, y)
+			world.setRenderSink(new FrameRenderSink(world.width(), world.height()));
+		}
+		SplittableRandom rand = new SplittableRandom(config.seed());
+		world.setSeed(rand.nextLong());
 
-		//populate world
+		// every creature of a species shares the one Species object
+		speciesList = new ArrayList<Species>();
 		for( int i = 0; i < speciesFilenames.length; i++) {
-			
-			for( int j = 0; j < 10; j++) {
-
-				try {
-					
-					String formattedSpeciesFilename = "./Creatures/" + speciesFilenames[i];
-					
-					BufferedReader in = new BufferedReader(new FileReader(formattedSpeciesFilename));
-					Species speciesTemp =  new Species(in);
-
-					boolean isNull = true;
-					Random rand = new Random();
-					Creature c;
-
-					// run this until the Creature is in an unoccupied position
-					// on the board
-					while( isNull) {
-						// create a random position on the board
-						int x = rand.nextInt(rows);
-						int y = rand.nextInt(cols);
-						int dir = rand.nextInt(4);
-						Position pos = new Position(x, y);
-
-						// if the square is unoccupied, place the Creature there
-						if ( world.get(pos) == null) {
-							c = new Creature(speciesTemp, world, pos, dir);
-							CreatureArray.add(c);
-							isNull = false;
-						}
-					}
-				}
-				catch (FileNotFoundException e) {
-					System.err.println("File not found");
-					System.err.println(e.getMessage());
-				}
+			try {
+				String formattedSpeciesFilename = "./Creatures/" + speciesFilenames[i];
+				speciesList.add(SpeciesRegistry.shared().load(formattedSpeciesFilename));
+			}
+			catch (FileNotFoundException e) {
+				System.err.println("File not found");
+				System.err.println(e.getMessage());
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Bad species file");
+				System.err.println(e.getMessage());
 			}
 		}
 
+		//populate world: pick every square up front, then hand them out
+		//species by species
+		int perSpecies = config.creaturesPerSpecies();
+		int[] squares = Placement.sample(world.grid().size(), speciesList.size() * perSpecies, rand);
+		CreatureArray = new ArrayList<Creature>(squares.length);
+		for( int i = 0; i < speciesList.size(); i++) {
+			Species speciesTemp = speciesList.get(i);
+			for( int j = 0; j < perSpecies; j++) {
+				Position pos = world.grid().position(squares[i * perSpecies + j]);
+				int dir = rand.nextInt(4);
+				Creature c = new Creature(speciesTemp, world, pos, dir);
+				world.set(pos, c);
+				world.renderSink().displaySquare(pos, speciesTemp.getSpeciesChar(), dir, speciesTemp.getColor());
+				CreatureArray.add(c);
+			}
+		}
+		world.renderSink().endRound();
 	}
 
 
@@ -119,23 +130,78 @@ class Darwin {
 	 * the latter options, make sure to change the code back to: Darwin d = new
 	 * Darwin(s); before submitting. If you want to use relative filenames for the
 	 * creatures they should be of the form "./Creatures/Hop.txt".
+	 *
+	 * Options such as "-headless", "-size 100 100" or "-seed 17" may come
+	 * before the file names; see DarwinConfig.parse. A headless run prints the
+	 * number of survivors of each species at the end.
 	 */
 	
 	public static void main(String s[]) {
-		WorldMap.createWorldMap(15, 15);
-		Darwin d = new Darwin(s);
+		DarwinConfig config = new DarwinConfig();
+		Darwin d;
+		try {
+			s = config.parse(s);
+			if (!config.isHeadless()) {
+				WorldMap.createWorldMap(config.width(), config.height());
+			}
+			d = new Darwin(s, config);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: Darwin [options] species-file ...");
+			System.err.print(DarwinConfig.OPTIONS);
+			System.exit(1);
+			return;
+		}
 		d.simulate();
+		if (config.isHeadless()) {
+			d.printPopulations();
+		}
 	}
 
 	/**
-	 * Runs the Darwin simulation for numRounds amount of times.
+	 * Runs the Darwin simulation for config.rounds() amount of times.
 	 * 
 	 */
 	public void simulate() {
-		for (int rounds = 0; rounds < numRounds; rounds++) {
+		for (int rounds = 0; rounds < config.rounds(); rounds++) {
 			giveEachCreatureOneTurn(); 
-			WorldMap.pause(1000); 
+			world.renderSink().endRound();
+			if (!config.isHeadless() && config.pause() > 0) {
+				WorldMap.pause(config.pause()); 
+			}
 		} 
 	}
 
+	/**
+	 * Returns the number of creatures of the given species in the world.
+	 * 
+	 * @param species
+	 */
+	public int population(Species species) {
+		int n = 0;
+		for( int i = 0; i < CreatureArray.size(); i++) {
+			if (CreatureArray.get(i).species() == species) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Prints the number of survivors of each species, and of the mutants of
+	 * all of them together if creatures mutate.
+	 */
+	public void printPopulations() {
+		int mutants = CreatureArray.size();
+		for( int i = 0; i < speciesList.size(); i++) {
+			Species species = speciesList.get(i);
+			System.out.println(species.getName() + ": " + population(species));
+			mutants -= population(species);
+		}
+		if (config.mutationRate() > 0) {
+			System.out.println("mutants: " + mutants);
+		}
+	}
+
 }
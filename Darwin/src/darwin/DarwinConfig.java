@@ -0,0 +1,347 @@
+package darwin;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+
+/**
+ * The settings for one Darwin simulation: the size of the world, how many
+ * creatures of each species to place, how many rounds to run, the seed, and
+ * how to display it. A new config holds the classic settings: a 15 x 15 world,
+ * ten creatures per species, 30 rounds and the WorldMap window.
+ */
+public class DarwinConfig {
+
+	/** The options parse reads, one per line, for usage messages. */
+	public static final String OPTIONS = "  -size w h      world of w columns and h rows\n"
+			+ "  -creatures n   n creatures of each species\n"
+			+ "  -rounds n      simulate n rounds\n"
+			+ "  -seed n        replay with seed n\n"
+			+ "  -budget n      at most n instructions per turn\n"
+			+ "  -flag          flag species that exceed the budget\n"
+			+ "  -headless      no WorldMap window\n"
+			+ "  -buffered      draw one frame per round\n"
+			+ "  -pause ms      pause ms milliseconds after each round drawn\n"
+			+ "  -threads n     headless tools play on n threads\n"
+			+ "  -simultaneous  play a match with ParallelEngine's simultaneous rules\n"
+			+ "  -backend b     interpreted, table or compiled\n"
+			+ "  -mutate p      infected creatures become mutants with chance p\n";
+
+	private int width = 15;
+	private int height = 15;
+	private int creaturesPerSpecies = 10;
+	private int rounds = 30;
+	private long seed = new SplittableRandom().nextLong();
+	private boolean headless;
+	private boolean buffered;
+	private int pause = -1; // -1 for the default of the display mode
+	private int instructionBudget = World.DEFAULT_INSTRUCTION_BUDGET;
+	private BudgetPolicy budgetPolicy = BudgetPolicy.FORFEIT;
+	private int threads;
+	private boolean simultaneous;
+	private GridEngine.Backend backend = GridEngine.Backend.TABLE;
+	private double mutationRate;
+
+	/**
+	 * Returns the number of columns in the world.
+	 */
+	public int width() {
+		return width;
+	}
+
+	/**
+	 * Returns the number of rows in the world.
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * Sets the size of the world.
+	 * 
+	 * @throws IllegalArgumentException if width or height is not positive
+	 */
+	public void setSize(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("width and height must be positive.");
+		}
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Returns the number of creatures placed for each species.
+	 */
+	public int creaturesPerSpecies() {
+		return creaturesPerSpecies;
+	}
+
+	/**
+	 * Sets the number of creatures placed for each species.
+	 * 
+	 * @throws IllegalArgumentException if n is negative
+	 */
+	public void setCreaturesPerSpecies(int n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("creatures per species must not be negative.");
+		}
+		creaturesPerSpecies = n;
+	}
+
+	/**
+	 * Returns the number of rounds to simulate.
+	 */
+	public int rounds() {
+		return rounds;
+	}
+
+	/**
+	 * Sets the number of rounds to simulate.
+	 * 
+	 * @throws IllegalArgumentException if rounds is negative
+	 */
+	public void setRounds(int rounds) {
+		if (rounds < 0) {
+			throw new IllegalArgumentException("rounds must not be negative.");
+		}
+		this.rounds = rounds;
+	}
+
+	/**
+	 * Returns the seed that decides placement and every ifrandom choice.
+	 */
+	public long seed() {
+		return seed;
+	}
+
+	/**
+	 * Sets the seed that decides placement and every ifrandom choice.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns whether the simulation runs without the WorldMap window.
+	 */
+	public boolean isHeadless() {
+		return headless;
+	}
+
+	/**
+	 * Sets whether the simulation runs without the WorldMap window. A headless
+	 * simulation does not pause between rounds.
+	 */
+	public void setHeadless(boolean headless) {
+		this.headless = headless;
+	}
+
+	/**
+	 * Returns whether the WorldMap is drawn one frame per round.
+	 */
+	public boolean isBuffered() {
+		return buffered;
+	}
+
+	/**
+	 * Sets whether the WorldMap is drawn one frame per round instead of waiting
+	 * for every square to be repainted.
+	 */
+	public void setBuffered(boolean buffered) {
+		this.buffered = buffered;
+	}
+
+	/**
+	 * Returns how long to pause after each round drawn in the WorldMap
+	 * window, in milliseconds. Unless set, it is 1000, or 0 when drawing one
+	 * frame per round, since frames are painted without the simulation
+	 * waiting for them.
+	 */
+	public int pause() {
+		if (pause >= 0) {
+			return pause;
+		}
+		return buffered ? 0 : 1000;
+	}
+
+	/**
+	 * Sets how long to pause after each round drawn in the WorldMap window,
+	 * in milliseconds.
+	 * 
+	 * @throws IllegalArgumentException if millis is negative
+	 */
+	public void setPause(int millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("pause must not be negative.");
+		}
+		pause = millis;
+	}
+
+	/**
+	 * Returns the number of instructions a creature may execute per turn.
+	 */
+	public int instructionBudget() {
+		return instructionBudget;
+	}
+
+	/**
+	 * Returns what happens to a creature that exceeds its instruction budget.
+	 */
+	public BudgetPolicy budgetPolicy() {
+		return budgetPolicy;
+	}
+
+	/**
+	 * Sets the per-turn instruction budget and what happens to creatures that
+	 * exceed it.
+	 * 
+	 * @throws IllegalArgumentException if budget is not positive
+	 */
+	public void setInstructionBudget(int budget, BudgetPolicy policy) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("budget must be positive.");
+		}
+		instructionBudget = budget;
+		budgetPolicy = policy;
+	}
+
+	/**
+	 * Returns the number of threads headless tools play on, or 0 for one per
+	 * core.
+	 */
+	public int threads() {
+		return threads;
+	}
+
+	/**
+	 * Sets the number of threads headless tools play on; 0 uses one per core.
+	 * 
+	 * @throws IllegalArgumentException if threads is negative
+	 */
+	public void setThreads(int threads) {
+		if (threads < 0) {
+			throw new IllegalArgumentException("threads must not be negative.");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns whether a single headless match is played with the simultaneous
+	 * rules of ParallelEngine rather than one creature after another.
+	 */
+	public boolean isSimultaneous() {
+		return simultaneous;
+	}
+
+	/**
+	 * Sets whether a single headless match is played with the simultaneous
+	 * rules of ParallelEngine, on threads() threads. The outcome differs from
+	 * a match played one creature after another.
+	 */
+	public void setSimultaneous(boolean simultaneous) {
+		this.simultaneous = simultaneous;
+	}
+
+	/**
+	 * Returns how headless engines work out each turn.
+	 */
+	public GridEngine.Backend backend() {
+		return backend;
+	}
+
+	/**
+	 * Sets how headless engines work out each turn.
+	 */
+	public void setBackend(GridEngine.Backend backend) {
+		this.backend = backend;
+	}
+
+	/**
+	 * Returns the chance that an infected creature becomes a mutant.
+	 */
+	public double mutationRate() {
+		return mutationRate;
+	}
+
+	/**
+	 * Sets the chance that an infected creature becomes a mutant of its
+	 * infector's species. Only the World simulation run by Darwin mutates.
+	 * 
+	 * @throws IllegalArgumentException unless 0 <= rate <= 1
+	 */
+	public void setMutationRate(double rate) {
+		if (!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException("mutation rate must be between 0 and 1.");
+		}
+		mutationRate = rate;
+	}
+
+	/**
+	 * Checks that the option at args[i] is followed by n values, for the tools
+	 * that read options of their own before handing the rest to parse.
+	 * 
+	 * @throws IllegalArgumentException if it is not
+	 */
+	static void requireValues(String[] args, int i, int n) {
+		if (i + n >= args.length) {
+			throw new IllegalArgumentException(args[i] + ((n == 1) ? " needs a value" : " needs " + n + " values"));
+		}
+	}
+
+	/**
+	 * Reads options from the front of a command line into this config and
+	 * returns the remaining arguments, the species file names. The options are
+	 * those listed in OPTIONS.
+	 * 
+	 * @throws IllegalArgumentException if an option is malformed
+	 */
+	public String[] parse(String[] args) {
+		int i = 0;
+		String option = null;
+		try {
+			while (i < args.length && args[i].startsWith("-")) {
+				option = args[i++];
+				if (option.equals("-size")) {
+					int w = Integer.parseInt(args[i++]);
+					int h = Integer.parseInt(args[i++]);
+					setSize(w, h);
+				} else if (option.equals("-creatures")) {
+					setCreaturesPerSpecies(Integer.parseInt(args[i++]));
+				} else if (option.equals("-rounds")) {
+					setRounds(Integer.parseInt(args[i++]));
+				} else if (option.equals("-seed")) {
+					setSeed(Long.parseLong(args[i++]));
+				} else if (option.equals("-budget")) {
+					setInstructionBudget(Integer.parseInt(args[i++]), budgetPolicy);
+				} else if (option.equals("-flag")) {
+					budgetPolicy = BudgetPolicy.FLAG;
+				} else if (option.equals("-headless")) {
+					setHeadless(true);
+				} else if (option.equals("-buffered")) {
+					setBuffered(true);
+				} else if (option.equals("-pause")) {
+					setPause(Integer.parseInt(args[i++]));
+				} else if (option.equals("-threads")) {
+					setThreads(Integer.parseInt(args[i++]));
+				} else if (option.equals("-simultaneous")) {
+					setSimultaneous(true);
+				} else if (option.equals("-backend")) {
+					setBackend(GridEngine.Backend.valueOf(args[i++].toUpperCase()));
+				} else if (option.equals("-mutate")) {
+					setMutationRate(Double.parseDouble(args[i++]));
+				} else {
+					throw new IllegalArgumentException("unknown option " + option);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("missing value for " + option);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bad number: " + e.getMessage());
+		}
+
+		ArrayList<String> rest = new ArrayList<String>();
+		for (; i < args.length; i++) {
+			rest.add(args[i]);
+		}
+		return rest.toArray(new String[rest.size()]);
+	}
+}
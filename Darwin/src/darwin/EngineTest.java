@@ -0,0 +1,315 @@
+package darwin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that the faster ways of playing a match give the same results as
+ * the plain one. Run it as an application from the Darwin directory: each
+ * test prints whether it passed, and the run exits with status 1 if any
+ * failed.
+ */
+public class EngineTest {
+
+	private int failures;
+	private final Species[] loaded;
+
+	/**
+	 * Load the species in ./Creatures to play with.
+	 */
+	public EngineTest() throws FileNotFoundException {
+		List<Species> all = SpeciesRegistry.shared().loadAll(new File("./Creatures"));
+		loaded = all.toArray(new Species[all.size()]);
+	}
+
+	/*
+	 * Prints the outcome of a test; failure is null if it passed.
+	 */
+	private void report(String test, String failure) {
+		if (failure == null) {
+			System.out.println(test + " test passed.");
+		} else {
+			failures++;
+			System.out.println(test + " test failed: " + failure);
+		}
+	}
+
+	/*
+	 * Species k and the one after it in ./Creatures, to play against each
+	 * other.
+	 */
+	private Species[] pair(int k) {
+		return new Species[] {loaded[k % loaded.length], loaded[(k + 1) % loaded.length]};
+	}
+
+	/*
+	 * Seeds engine and places perSpecies creatures of each species, as
+	 * GridEngine.main does.
+	 */
+	private static GridEngine populate(GridEngine engine, long seed, int perSpecies) {
+		SplittableRandom rand = new SplittableRandom(seed);
+		engine.setSeed(rand.nextLong());
+		engine.populate(perSpecies, rand);
+		return engine;
+	}
+
+	/*
+	 * Everything about the world that a later round can depend on.
+	 */
+	static String state(GridEngine engine) {
+		StringBuilder s = new StringBuilder();
+		s.append(engine.round()).append(' ');
+		for (int k = 0; k < engine.populationOf.length; k++) {
+			s.append(engine.population(k)).append(' ');
+		}
+		s.append(Arrays.hashCode(engine.cellSpecies)).append(' ');
+		s.append(Arrays.hashCode(Arrays.copyOf(engine.cellOf, engine.count))).append(' ');
+		s.append(Arrays.hashCode(Arrays.copyOf(engine.dirOf, engine.count))).append(' ');
+		s.append(Arrays.hashCode(Arrays.copyOf(engine.pcOf, engine.count)));
+		return s.toString();
+	}
+
+	/**
+	 * ParallelEngine plays every match the same on 1, 2 and 4 threads, on a
+	 * world of several tiles.
+	 */
+	public void testThreadCounts() {
+		ForkJoinPool[] pools = {new ForkJoinPool(1), new ForkJoinPool(2), new ForkJoinPool(4)};
+		try {
+			for (int k = 0; k < loaded.length; k++) {
+				for (long seed = 0; seed < 3; seed++) {
+					String first = null;
+					for (ForkJoinPool pool : pools) {
+						GridEngine engine = populate(new ParallelEngine(40, 40, pair(k), pool), seed, 80);
+						engine.simulate(100);
+						String now = state(engine);
+						if (first == null) {
+							first = now;
+						} else if (!now.equals(first)) {
+							report("Thread counts", pair(k)[0].getName() + " against " + pair(k)[1].getName() + ", seed "
+									+ seed + ", played differently on " + pool.getParallelism() + " threads");
+							return;
+						}
+					}
+				}
+			}
+			report("Thread counts", null);
+		} catch (Exception | Error e) {
+			report("Thread counts", e.toString());
+		} finally {
+			for (ForkJoinPool pool : pools) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * The transition table gives the same turns as interpreting the program,
+	 * under the default budget and under budgets small enough that the table
+	 * has to fall back to the interpreter.
+	 */
+	public void testTransitionTable() {
+		try {
+			for (int k = 0; k < loaded.length; k++) {
+				for (int budget : new int[] {World.DEFAULT_INSTRUCTION_BUDGET, 1, 3}) {
+					for (long seed = 0; seed < 3; seed++) {
+						String[] states = new String[2];
+						for (int i = 0; i < states.length; i++) {
+							GridEngine engine = new GridEngine(20, 20, pair(k));
+							engine.setInstructionBudget(budget, BudgetPolicy.FORFEIT);
+							engine.setBackend((i == 0) ? GridEngine.Backend.INTERPRETED : GridEngine.Backend.TABLE);
+							populate(engine, seed, 30).simulate(100);
+							states[i] = state(engine);
+						}
+						if (!states[0].equals(states[1])) {
+							report("Transition table", pair(k)[0].getName() + " against " + pair(k)[1].getName()
+									+ ", seed " + seed + ", budget " + budget + ", played differently");
+							return;
+						}
+					}
+				}
+			}
+			report("Transition table", null);
+		} catch (Exception | Error e) {
+			report("Transition table", e.toString());
+		}
+	}
+
+	/**
+	 * A batch of matches, of two and three species, gives each match the
+	 * survivors and the rounds played that it gets when played on its own,
+	 * under the default budget and under a budget of 1. The small world makes
+	 * matches stop early in every way playOut knows.
+	 */
+	public void testBatch() {
+		try {
+			for (int budget : new int[] {World.DEFAULT_INSTRUCTION_BUDGET, 1}) {
+				for (int size : new int[] {15, 8}) {
+					DarwinConfig config = new DarwinConfig();
+					config.setSize(size, size);
+					config.setCreaturesPerSpecies(size / 2);
+					config.setRounds(500);
+					config.setInstructionBudget(budget, BudgetPolicy.FORFEIT);
+					ArrayList<Match> matches = new ArrayList<Match>();
+					for (int k = 0; k < loaded.length; k++) {
+						for (long seed = 0; seed < 3; seed++) {
+							matches.add(new Match(pair(k), config, seed));
+						}
+						Species[] three = {loaded[k], loaded[(k + 2) % loaded.length], loaded[(k + 5) % loaded.length]};
+						matches.add(new Match(three, config, k));
+					}
+					MatchResult[] batch = BatchEngine.play(matches.toArray(new Match[matches.size()]));
+					for (int m = 0; m < batch.length; m++) {
+						MatchResult single = matches.get(m).play();
+						if (!batch[m].toString().equals(single.toString()) || batch[m].rounds() != single.rounds()) {
+							report("Batch", "match " + m + " on " + size + " x " + size + " under budget " + budget
+									+ " ended " + batch[m] + " after " + batch[m].rounds() + " rounds in the batch and "
+									+ single + " after " + single.rounds() + " on its own");
+							return;
+						}
+					}
+				}
+			}
+			report("Batch", null);
+		} catch (Exception | Error e) {
+			report("Batch", e.toString());
+		}
+	}
+
+	/*
+	 * A new engine for species on a size x size world, a ParallelEngine if
+	 * pool is not null.
+	 */
+	private static GridEngine engine(Species[] species, int size, ForkJoinPool pool) {
+		if (pool == null) {
+			return new GridEngine(size, size, species);
+		}
+		return new ParallelEngine(size, size, species, pool);
+	}
+
+	/*
+	 * The state hash of engine worked out from scratch.
+	 */
+	private static long stateHash(GridEngine engine) {
+		long hash = 0;
+		for (int c = 0; c < engine.count; c++) {
+			int cell = engine.cellOf[c];
+			hash ^= GridEngine.stateKey(c, cell, engine.cellSpecies[cell], engine.dirOf[c], engine.pcOf[c]);
+		}
+		return hash;
+	}
+
+	/**
+	 * playOut leaves the world as simulate does, with the same populations
+	 * and round, and the same creatures unless it stopped because one species
+	 * was left, on GridEngine and on ParallelEngine. Small worlds make sure
+	 * that fixed points and cycles are skipped, and that it then reports
+	 * stopping early.
+	 */
+	public void testPlayOut() {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			int skipped = 0;
+			for (ForkJoinPool on : new ForkJoinPool[] {null, pool}) {
+				for (int k = 0; k < loaded.length; k++) {
+					for (long seed = 0; seed < 6; seed++) {
+						int size = 6 + (int) seed;
+						GridEngine simulated = populate(engine(pair(k), size, on), seed, 4);
+						GridEngine played = populate(engine(pair(k), size, on), seed, 4);
+						simulated.simulate(500);
+						GridEngine.Ending ending = played.playOut(500);
+						String failure = null;
+						if (ending == GridEngine.Ending.ONE_SPECIES) {
+							for (int s = 0; s < 2; s++) {
+								if (simulated.population(s) != played.population(s)) {
+									failure = "the populations differ";
+								}
+							}
+							if (simulated.round() != played.round()) {
+								failure = "the rounds differ";
+							}
+						} else if (!state(simulated).equals(state(played))) {
+							failure = "the worlds differ after " + ending;
+						}
+						if (ending == GridEngine.Ending.FIXED_POINT || ending == GridEngine.Ending.CYCLE) {
+							skipped++;
+						}
+						if (ending != GridEngine.Ending.ROUNDS && played.stoppedAt() >= 500) {
+							failure = "it ended with " + ending + " but did not report stopping early";
+						}
+						if (failure != null) {
+							report("Play out", pair(k)[0].getName() + " against " + pair(k)[1].getName() + ", seed "
+									+ seed + ((on == null) ? "" : ", simultaneous") + ": " + failure);
+							return;
+						}
+					}
+				}
+			}
+			if (skipped == 0) {
+				report("Play out", "no fixed point or cycle was found");
+				return;
+			}
+			report("Play out", null);
+		} catch (Exception | Error e) {
+			report("Play out", e.toString());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The state hash kept up to date move by move, and by ParallelEngine tile
+	 * by tile, equals the hash worked out from scratch after every round,
+	 * also under a budget small enough that creatures run out of it.
+	 */
+	public void testStateHash() {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			for (ForkJoinPool on : new ForkJoinPool[] {null, pool}) {
+				for (int budget : new int[] {World.DEFAULT_INSTRUCTION_BUDGET, 2}) {
+					for (int k = 0; k < loaded.length; k++) {
+						GridEngine engine = engine(pair(k), 20, on);
+						engine.setInstructionBudget(budget, BudgetPolicy.FORFEIT);
+						populate(engine, k, 30);
+						engine.hashing = true;
+						engine.stateHash = stateHash(engine);
+						for (int r = 0; r < 100; r++) {
+							engine.giveEachCreatureOneTurn();
+							if (engine.stateHash != stateHash(engine)) {
+								report("State hash", pair(k)[0].getName() + " against " + pair(k)[1].getName()
+										+ ((on == null) ? "" : ", simultaneous") + ", budget " + budget
+										+ ": wrong after round " + engine.round());
+								return;
+							}
+						}
+					}
+				}
+			}
+			report("State hash", null);
+		} catch (Exception | Error e) {
+			report("State hash", e.toString());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Runs every test, and exits with status 1 if any failed.
+	 */
+	public static void main(String[] args) throws FileNotFoundException {
+		EngineTest t = new EngineTest();
+		t.testThreadCounts();
+		t.testTransitionTable();
+		t.testBatch();
+		t.testPlayOut();
+		t.testStateHash();
+		if (t.failures > 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package darwin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evolves species by a genetic algorithm. A generation is a population of
+ * species; each is scored by headless matches against a fixed set of
+ * opponents, and the next generation is bred from the best of it.
+ *
+ * Fitness is the share of wins a species earns in one-on-one matches with
+ * every opponent, on seeds drawn fresh for each generation so a program
+ * cannot fit one starting position. The matches of a generation are played
+ * on a ForkJoinPool, a task per species. Each generation keeps its best few
+ * species unchanged and fills the rest with children of parents picked by
+ * tournament selection: a crossover of two parents some of the time, then a
+ * mutation some of the time. Children that are not changed share their
+ * parent's program and compiled code through Species.copy.
+ *
+ * Everything is drawn from the config's seed, so a run replays exactly
+ * whatever the number of threads.
+ */
+public class Evolution {
+
+	// parents are the fittest of this many species picked at random
+	private static final int SELECTION_SIZE = 3;
+
+	private final Species[] opponents;
+	private final DarwinConfig config;
+	private final SplittableRandom rand;
+	private Species[] population;
+	private double[] fitness; // of population, once evaluated
+	private int generation;
+	private int elites = 2;
+	private double crossoverRate = 0.3;
+	private double mutationRate = 0.8;
+	private int seedsPerOpponent = 4;
+	private MatchCache cache; // null to play every match
+
+	/**
+	 * Create a first generation of size species: the ancestors themselves,
+	 * then mutants of them in turn. Fitness is measured against opponents,
+	 * with the match settings of config.
+	 *
+	 * @throws IllegalArgumentException if there are no ancestors or opponents,
+	 *         or size is smaller than the number of ancestors
+	 */
+	public Evolution(Species[] ancestors, Species[] opponents, int size, DarwinConfig config) {
+		this(ancestors, opponents, size, config, config.seed());
+	}
+
+	/**
+	 * Create a first generation as above, but draw everything from seed
+	 * rather than the config's seed, so that several evolutions can share a
+	 * config.
+	 *
+	 * @see #Evolution(Species[], Species[], int, DarwinConfig)
+	 */
+	public Evolution(Species[] ancestors, Species[] opponents, int size, DarwinConfig config, long seed) {
+		if (ancestors.length == 0 || opponents.length == 0) {
+			throw new IllegalArgumentException("there must be ancestors and opponents.");
+		}
+		if (size < ancestors.length) {
+			throw new IllegalArgumentException("the population cannot hold every ancestor.");
+		}
+		this.opponents = opponents.clone();
+		this.config = config;
+		rand = new SplittableRandom(seed);
+		population = new Species[size];
+		for (int i = 0; i < size; i++) {
+			Species ancestor = ancestors[i % ancestors.length];
+			population[i] = (i < ancestors.length) ? ancestor.copy() : Mutator.mutate(ancestor, rand);
+		}
+	}
+
+	/**
+	 * Sets how many of the fittest species pass to the next generation
+	 * unchanged. The default is 2.
+	 *
+	 * @throws IllegalArgumentException unless 0 <= n <= the population size
+	 */
+	public void setElites(int n) {
+		if (n < 0 || n > population.length) {
+			throw new IllegalArgumentException("elites must be between 0 and the population size.");
+		}
+		elites = n;
+	}
+
+	/**
+	 * Sets the chance that a child is a crossover of two parents rather than a
+	 * copy of one, and the chance that it is then mutated. The defaults are
+	 * 0.3 and 0.8.
+	 *
+	 * @throws IllegalArgumentException unless both are between 0 and 1
+	 */
+	public void setRates(double crossover, double mutation) {
+		if (!(crossover >= 0 && crossover <= 1 && mutation >= 0 && mutation <= 1)) {
+			throw new IllegalArgumentException("rates must be between 0 and 1.");
+		}
+		crossoverRate = crossover;
+		mutationRate = mutation;
+	}
+
+	/**
+	 * Sets the number of matches each species plays against each opponent per
+	 * generation. The default is 4.
+	 *
+	 * @throws IllegalArgumentException if n is not positive
+	 */
+	public void setSeedsPerOpponent(int n) {
+		if (n <= 0) {
+			throw new IllegalArgumentException("seeds per opponent must be positive.");
+		}
+		seedsPerOpponent = n;
+	}
+
+	/**
+	 * Looks fitness matches up in cache before playing them, and records
+	 * those played there.
+	 *
+	 * @param cache the cache to use, or null to play every match
+	 */
+	public void setCache(MatchCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the number of generations bred so far.
+	 */
+	public int generation() {
+		return generation;
+	}
+
+	/**
+	 * Returns species i of the current generation.
+	 */
+	public Species member(int i) {
+		return population[i];
+	}
+
+	/**
+	 * Returns the number of species in a generation.
+	 */
+	public int size() {
+		return population.length;
+	}
+
+	/**
+	 * Score every species of the current generation, playing the matches on
+	 * pool.
+	 *
+	 * @return the fitness of each species, between 0 and 1.
+	 */
+	public double[] evaluate(ForkJoinPool pool) {
+		final FitnessTask[] tasks = fitnessTasks();
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		return collect(tasks);
+	}
+
+	/**
+	 * Score every species of the current generation, playing the matches on
+	 * the calling thread. Gives the same fitness as evaluate(pool).
+	 *
+	 * @return the fitness of each species, between 0 and 1.
+	 */
+	public double[] evaluate() {
+		FitnessTask[] tasks = fitnessTasks();
+		for (FitnessTask task : tasks) {
+			task.compute();
+		}
+		return collect(tasks);
+	}
+
+	/*
+	 * A task per species, all on the same fresh seeds.
+	 */
+	private FitnessTask[] fitnessTasks() {
+		long[] seeds = new long[seedsPerOpponent];
+		for (int i = 0; i < seeds.length; i++) {
+			seeds[i] = rand.nextLong();
+		}
+		FitnessTask[] tasks = new FitnessTask[population.length];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new FitnessTask(population[i], seeds);
+		}
+		return tasks;
+	}
+
+	private double[] collect(FitnessTask[] tasks) {
+		fitness = new double[population.length];
+		for (int i = 0; i < tasks.length; i++) {
+			fitness[i] = tasks[i].fitness;
+		}
+		return fitness.clone();
+	}
+
+	/**
+	 * Returns the n fittest species of the evaluated generation, fittest
+	 * first.
+	 *
+	 * @throws IllegalStateException if the generation has not been evaluated
+	 */
+	public Species[] fittest(int n) {
+		if (fitness == null) {
+			throw new IllegalStateException("the generation has not been evaluated.");
+		}
+		int[] order = ranking();
+		Species[] result = new Species[Math.min(n, order.length)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = population[order[i]];
+		}
+		return result;
+	}
+
+	/**
+	 * Put copies of migrants, from another population, in place of the least
+	 * fit species of the evaluated generation. Until they are measured with
+	 * the next generation, breed treats the migrants as being as fit as the
+	 * generation's own best: the first as the fittest, the second as the
+	 * next, and so on.
+	 *
+	 * @throws IllegalStateException if the generation has not been evaluated
+	 */
+	public void immigrate(Species[] migrants) {
+		if (fitness == null) {
+			throw new IllegalStateException("the generation has not been evaluated.");
+		}
+		int[] order = ranking();
+		for (int i = 0; i < migrants.length && i < order.length; i++) {
+			int worst = order[order.length - 1 - i];
+			population[worst] = migrants[i].copy();
+			fitness[worst] = fitness[order[i]];
+		}
+	}
+
+	/**
+	 * Replace the current generation, once evaluated, with the next.
+	 *
+	 * @throws IllegalStateException if the generation has not been evaluated
+	 */
+	public void breed() {
+		if (fitness == null) {
+			throw new IllegalStateException("the generation has not been evaluated.");
+		}
+		int[] order = ranking();
+		Species[] next = new Species[population.length];
+		for (int i = 0; i < elites; i++) {
+			next[i] = population[order[i]].copy();
+		}
+		for (int i = elites; i < next.length; i++) {
+			Species parent = population[select()];
+			Species child = null;
+			if (rand.nextDouble() < crossoverRate) {
+				child = Mutator.crossover(parent, population[select()], rand);
+			}
+			if (rand.nextDouble() < mutationRate) {
+				child = Mutator.mutate((child != null) ? child : parent, rand);
+			}
+			next[i] = (child != null) ? child : parent.copy();
+		}
+		population = next;
+		fitness = null;
+		generation++;
+	}
+
+	/**
+	 * Returns the index of the fittest species of the evaluated generation;
+	 * ties go to the lower index.
+	 *
+	 * @throws IllegalStateException if the generation has not been evaluated
+	 */
+	public int best() {
+		if (fitness == null) {
+			throw new IllegalStateException("the generation has not been evaluated.");
+		}
+		return ranking()[0];
+	}
+
+	/*
+	 * The species of the generation, fittest first, ties by index.
+	 */
+	private int[] ranking() {
+		Integer[] order = new Integer[population.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(fitness[b], fitness[a]);
+			}
+		});
+		int[] result = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			result[i] = order[i];
+		}
+		return result;
+	}
+
+	/*
+	 * The fittest of SELECTION_SIZE species picked at random.
+	 */
+	private int select() {
+		int best = rand.nextInt(population.length);
+		for (int k = 1; k < SELECTION_SIZE; k++) {
+			int other = rand.nextInt(population.length);
+			if (fitness[other] > fitness[best]) {
+				best = other;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Plays one species against every opponent on every seed.
+	 */
+	private class FitnessTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Species species;
+		private final long[] seeds;
+		private double fitness;
+
+		FitnessTask(Species species, long[] seeds) {
+			this.species = species;
+			this.seeds = seeds;
+		}
+
+		protected void compute() {
+			double score = 0;
+			for (Species opponent : opponents) {
+				for (long seed : seeds) {
+					Match match = new Match(new Species[] {species, opponent}, config, seed);
+					score += ((cache != null) ? cache.play(match) : match.play()).score(0);
+				}
+			}
+			fitness = score / (opponents.length * seeds.length);
+		}
+	}
+
+	/**
+	 * Return species' program in the format of a species file, under name.
+	 */
+	public static String toFileText(Species species, String name) {
+		StringBuilder text = new StringBuilder();
+		text.append(name).append('\n');
+		text.append(species.getColor()).append('\n');
+		for (int i = 1; i <= species.programSize(); i++) {
+			text.append(species.programStep(i)).append('\n');
+		}
+		text.append('\n');
+		return text.toString();
+	}
+
+	/**
+	 * Evolves species from those in a directory, ./Creatures by default, which
+	 * are also the opponents, and prints the best and mean fitness of every
+	 * generation. A species whose program can loop without acting is
+	 * rejected. Besides the options of DarwinConfig.parse it takes
+	 *
+	 * <pre>
+	 *  -generations n  breed n generations (default 50)
+	 *  -population n   n species per generation (default 40)
+	 *  -out file       write the fittest species of the last generation
+	 *                  to file as "Evolved" (default: print it)
+	 *  -cache file     look matches up in the MatchCache in file
+	 * </pre>
+	 *
+	 * and "-threads n" sets the size of the pool the matches are played on.
+	 */
+	public static void main(String[] args) {
+		try {
+			int generations = 50;
+			int size = 40;
+			String out = null;
+			String cacheFile = null;
+			ArrayList<String> rest = new ArrayList<String>();
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-generations")) {
+					DarwinConfig.requireValues(args, i, 1);
+					generations = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-population")) {
+					DarwinConfig.requireValues(args, i, 1);
+					size = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-out")) {
+					DarwinConfig.requireValues(args, i, 1);
+					out = args[++i];
+				} else if (args[i].equals("-cache")) {
+					DarwinConfig.requireValues(args, i, 1);
+					cacheFile = args[++i];
+				} else {
+					rest.add(args[i]);
+				}
+			}
+			DarwinConfig config = new DarwinConfig();
+			String[] dirs = config.parse(rest.toArray(new String[rest.size()]));
+			File directory = new File((dirs.length > 0) ? dirs[0] : "./Creatures");
+
+			SpeciesRegistry.shared().setStrict(true);
+			List<Species> loaded = SpeciesRegistry.shared().loadAll(directory);
+			Species[] roster = loaded.toArray(new Species[loaded.size()]);
+			Evolution evolution = new Evolution(roster, roster, size, config);
+			MatchCache cache = (cacheFile != null) ? new MatchCache(new File(cacheFile), 100000) : null;
+			evolution.setCache(cache);
+
+			int threads = (config.threads() > 0) ? config.threads() : Runtime.getRuntime().availableProcessors();
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			int best;
+			try {
+				double[] fitness = evolution.evaluate(pool);
+				for (int g = 1; g <= generations; g++) {
+					evolution.breed();
+					fitness = evolution.evaluate(pool);
+					double mean = 0;
+					for (double f : fitness) {
+						mean += f / fitness.length;
+					}
+					System.out.println(String.format("generation %d: best %.3f mean %.3f", g,
+							fitness[evolution.best()], mean));
+				}
+				best = evolution.best();
+			} finally {
+				pool.shutdown();
+				if (cache != null) {
+					cache.close();
+				}
+			}
+
+			String text = toFileText(evolution.member(best), "Evolved");
+			if (out == null) {
+				System.out.print(text);
+			} else {
+				PrintWriter writer = new PrintWriter(out);
+				try {
+					writer.print(text);
+				} finally {
+					writer.close();
+				}
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("File not found");
+			System.err.println(e.getMessage());
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package darwin;
+
+/**
+ * A RenderSink that collects the updates of a whole round and hands them to
+ * the WorldMap window as a single frame, instead of making the simulation wait
+ * for a repaint after every square.
+ * 
+ * The simulation thread writes into a back frame. Repeated updates to the same
+ * square within a round overwrite each other, so only the last one is drawn.
+ * At the end of the round the back frame becomes the pending frame, and a
+ * painter thread passes its squares to WorldMap.displaySquare. That method
+ * waits for each repaint, which happens on the event thread, so the painter
+ * cannot be the event thread itself. The simulation thread never waits for
+ * the painter; if the painter falls behind, the next round is merged into the
+ * frame that is still pending.
+ * 
+ * WorldMap.createWorldMap must be called before any frame is published.
+ */
+public class FrameRenderSink implements RenderSink {
+
+	private final int width, height;
+
+	// only touched by the simulation thread
+	private Frame back;
+
+	// handed between the simulation thread and the event thread under lock
+	private final Object lock = new Object();
+	private Frame pending;
+	private Frame spare;
+	private Thread painter; // started with the first frame
+
+	/**
+	 * Create a sink for a WorldMap of the given size.
+	 */
+	public FrameRenderSink(int width, int height) {
+		this.width = width;
+		this.height = height;
+		back = new Frame(width, height);
+		spare = new Frame(width, height);
+	}
+
+	/**
+	 * Record the new contents of the square in the back frame.
+	 */
+	public void displaySquare(Position pos, char c, int dir, String color) {
+		back.put(pos.getX() * height + pos.getY(), c, dir, color);
+	}
+
+	/**
+	 * Publish the back frame to the painter thread and start a new one.
+	 */
+	public void endRound() {
+		if (back.count == 0) {
+			return;
+		}
+		synchronized (lock) {
+			if (pending != null) {
+				// the last frame has not been painted yet, fold this one into it
+				back.mergeInto(pending);
+				back.clear();
+				return;
+			}
+			pending = back;
+			back = (spare != null) ? spare : new Frame(width, height);
+			spare = null;
+			if (painter == null) {
+				painter = new Thread(new Runnable() {
+					public void run() {
+						paintFrames();
+					}
+				}, "Darwin painter");
+				painter.setDaemon(true);
+				painter.start();
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/*
+	 * Runs on the painter thread: wait for a pending frame, display its
+	 * squares, and give the frame back to the simulation thread for reuse.
+	 */
+	private void paintFrames() {
+		while (true) {
+			Frame f;
+			synchronized (lock) {
+				while (pending == null) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				f = pending;
+				pending = null;
+			}
+			for (int i = 0; i < f.count; i++) {
+				int cell = f.cells[i];
+				WorldMap.displaySquare(new Position(cell / height, cell % height), f.c[cell], f.dir[cell],
+						f.color[cell]);
+			}
+			f.clear();
+			synchronized (lock) {
+				spare = f;
+			}
+		}
+	}
+
+	/*
+	 * The squares that changed during one or more rounds. Squares are indexed
+	 * by x * height + y.
+	 */
+	private static class Frame {
+		final int height;
+		final char[] c;
+		final int[] dir;
+		final String[] color;
+		final boolean[] dirty;
+
+		// the indices of the dirty squares, in the order they were first touched
+		final int[] cells;
+		int count;
+
+		Frame(int width, int height) {
+			this.height = height;
+			int size = width * height;
+			c = new char[size];
+			dir = new int[size];
+			color = new String[size];
+			dirty = new boolean[size];
+			cells = new int[size];
+		}
+
+		void put(int cell, char c, int dir, String color) {
+			if (!dirty[cell]) {
+				dirty[cell] = true;
+				cells[count++] = cell;
+			}
+			this.c[cell] = c;
+			this.dir[cell] = dir;
+			this.color[cell] = color;
+		}
+
+		void mergeInto(Frame other) {
+			for (int i = 0; i < count; i++) {
+				int cell = cells[i];
+				other.put(cell, c[cell], dir[cell], color[cell]);
+			}
+		}
+
+		void clear() {
+			for (int i = 0; i < count; i++) {
+				int cell = cells[i];
+				dirty[cell] = false;
+				color[cell] = null;
+			}
+			count = 0;
+		}
+	}
+}
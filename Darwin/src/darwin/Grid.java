@@ -0,0 +1,145 @@
+package darwin;
+
+/**
+ * The geometry of a world of a given size, with squares numbered by a single
+ * int: the square at (x, y) is y * width + x. The square next to a square is
+ * worked out from its number, so that moving and sensing never allocate a
+ * Position, and a grid takes the same few bytes whatever its size. Position
+ * is only needed where a square is handed to code outside the simulation,
+ * such as a RenderSink. A grid of at most CACHED_POSITIONS squares makes one
+ * Position per square up front and hands out the same object every time.
+ * 
+ * Grids are immutable and may be shared between threads.
+ */
+public final class Grid {
+
+	/** The neighbour of a square that lies off the edge of the world. */
+	public static final int WALL = -1;
+
+	/** The most squares a grid keeps a Position for. */
+	public static final int CACHED_POSITIONS = 1 << 16;
+
+	private final int width, height;
+
+	// positions[cell] is the Position of cell, or null for a large grid
+	private final Position[] positions;
+
+	/**
+	 * Create the grid for a world of width columns and height rows.
+	 * 
+	 * @throws IllegalArgumentException if width or height is not positive,
+	 *         or there are more squares than an int can number
+	 */
+	public Grid(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("width and height must be positive.");
+		}
+		if ((long) width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("the world has too many squares.");
+		}
+		this.width = width;
+		this.height = height;
+		if (width * height <= CACHED_POSITIONS) {
+			positions = new Position[width * height];
+			for (int cell = 0; cell < positions.length; cell++) {
+				positions[cell] = new Position(x(cell), y(cell));
+			}
+		} else {
+			positions = null;
+		}
+	}
+
+	/**
+	 * Returns the width of the grid.
+	 */
+	public int width() {
+		return width;
+	}
+
+	/**
+	 * Returns the height of the grid.
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * Returns the number of squares in the grid.
+	 */
+	public int size() {
+		return width * height;
+	}
+
+	/**
+	 * Returns whether (x, y) is a square of the grid.
+	 */
+	public boolean inRange(int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height;
+	}
+
+	/**
+	 * Returns the number of the square at (x, y).
+	 * 
+	 * @pre inRange(x, y).
+	 */
+	public int index(int x, int y) {
+		return y * width + x;
+	}
+
+	/**
+	 * Returns the number of the square at pos.
+	 * 
+	 * @throws IllegalArgumentException if pos is not in range
+	 */
+	public int index(Position pos) {
+		if (!inRange(pos.getX(), pos.getY())) {
+			throw new IllegalArgumentException("pos is not in range.");
+		}
+		return index(pos.getX(), pos.getY());
+	}
+
+	/**
+	 * Returns the x coordinate of a square.
+	 */
+	public int x(int cell) {
+		return cell % width;
+	}
+
+	/**
+	 * Returns the y coordinate of a square.
+	 */
+	public int y(int cell) {
+		return cell / width;
+	}
+
+	/**
+	 * Returns the square next to cell in the given compass direction, or WALL if
+	 * that would be off the edge of the grid.
+	 * 
+	 * @pre 0 <= cell < size() and dir is NORTH, EAST, SOUTH or WEST.
+	 */
+	public int adjacent(int cell, int dir) {
+		switch (dir) {
+			case Position.NORTH :
+				return (cell >= width) ? cell - width : WALL;
+			case Position.EAST :
+				return (cell % width < width - 1) ? cell + 1 : WALL;
+			case Position.SOUTH :
+				return (cell < width * (height - 1)) ? cell + width : WALL;
+			default :
+				return (cell % width > 0) ? cell - 1 : WALL;
+		}
+	}
+
+	/**
+	 * Returns a Position for a square. A grid of at most CACHED_POSITIONS
+	 * squares returns the same object every time, so steady-state callers do
+	 * not allocate; a larger one makes a new Position.
+	 */
+	public Position position(int cell) {
+		if (positions != null) {
+			return positions[cell];
+		}
+		return new Position(x(cell), y(cell));
+	}
+}
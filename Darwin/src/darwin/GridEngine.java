@@ -0,0 +1,833 @@
+package darwin;
+
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A headless Darwin simulation that keeps the whole world in flat primitive
+ * arrays instead of Creature objects in a Matrix. Each creature is an index
+ * into parallel arrays holding its direction, program counter and square, and
+ * each square records the species on it, so a creature costs a few bytes and
+ * the engine can hold tens of millions of them.
+ * 
+ * The rules are the same as Creature.takeOneTurn: in every round each creature,
+ * in the order it was added, executes its species' program until it reaches
+ * an action, within the per-turn instruction budget.
+ * 
+ * The board is surrounded by two rings of WALL squares, so the square in front
+ * of a creature, and the one behind that for if2enemy, always exist. Each
+ * square records the species standing on it, which lets a single array read
+ * tell wall, empty, same and enemy apart without any bounds checks. Squares
+ * are numbered row by row across the padded board.
+ */
+public class GridEngine {
+
+	/** Marks a square with no creature on it. */
+	public static final int EMPTY = -1;
+
+	/** Marks a square in the border around the world. */
+	public static final int WALL = -2;
+
+	// number of WALL rings around the board
+	static final int RING = 2;
+
+	private final int width, height;
+
+	// the width of the padded board, and the distance between the squares
+	// next to each other in each compass direction
+	final int stride;
+	final int[] offset;
+
+	// the species taking part, indexed by the engine's own species numbers
+	final Species[] species;
+	final int[][] code;
+	final TransitionTable[] tables;
+
+	// per square of the padded board: the species on it, EMPTY or WALL, and
+	// the index of the creature on it
+	final short[] cellSpecies;
+	final int[] occupant;
+
+	// per creature
+	byte[] dirOf;
+	short[] pcOf;
+	int[] cellOf;
+	int count;
+
+	// per species, the number of creatures of that species
+	final int[] populationOf;
+
+	// while playOut runs, the XOR of stateKey over every creature, kept up
+	// to date on each hop, turn, infect and change of step
+	boolean hashing;
+	long stateHash;
+
+	int instructionBudget = World.DEFAULT_INSTRUCTION_BUDGET;
+	BudgetPolicy budgetPolicy = BudgetPolicy.FORFEIT;
+
+	// ifrandom draws from RandomBits.forTurn(seed, round, creature)
+	long seed = new SplittableRandom().nextLong();
+	long round;
+	private long stoppedAt; // the round the last playOut stopped playing at
+
+	/**
+	 * How an engine works out what a creature does in its turn. All three give
+	 * the same results.
+	 */
+	public enum Backend {
+		/** Interpret the packed program one step at a time. */
+		INTERPRETED,
+		/** Look the turn up in the species' TransitionTable. */
+		TABLE,
+		/** Run the species' program compiled to a hidden class. */
+		COMPILED
+	}
+
+	Backend backend = Backend.TABLE;
+
+	// per species, filled in when the COMPILED backend is chosen; null for
+	// programs that could not be compiled
+	CompiledProgram[] compiled;
+
+	/**
+	 * Create an empty world of width columns and height rows in which the given
+	 * species can live. Species are referred to by their index in the array.
+	 * 
+	 * @throws IllegalArgumentException if there are too many species or a
+	 *         program is too long for the packed representation
+	 */
+	public GridEngine(int width, int height, Species[] species) {
+		if (species.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("too many species.");
+		}
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("width and height must be positive.");
+		}
+		this.width = width;
+		this.height = height;
+		this.species = species.clone();
+		code = new int[species.length][];
+		tables = new TransitionTable[species.length];
+		for (int s = 0; s < species.length; s++) {
+			if (species[s].code().length > Short.MAX_VALUE) {
+				throw new IllegalArgumentException("program of " + species[s].getName() + " is too long.");
+			}
+		}
+		loadPrograms();
+
+		stride = width + 2 * RING;
+		offset = new int[4];
+		offset[Position.NORTH] = -stride;
+		offset[Position.EAST] = 1;
+		offset[Position.SOUTH] = stride;
+		offset[Position.WEST] = -1;
+
+		int padded = stride * (height + 2 * RING);
+		cellSpecies = new short[padded];
+		occupant = new int[padded];
+		Arrays.fill(cellSpecies, (short) WALL);
+		Arrays.fill(occupant, EMPTY);
+		for (int y = 0; y < height; y++) {
+			int row = (y + RING) * stride + RING;
+			Arrays.fill(cellSpecies, row, row + width, (short) EMPTY);
+		}
+
+		populationOf = new int[species.length];
+		int capacity = 16;
+		dirOf = new byte[capacity];
+		pcOf = new short[capacity];
+		cellOf = new int[capacity];
+	}
+
+	/**
+	 * Returns the width of the world.
+	 */
+	public int width() {
+		return width;
+	}
+
+	/**
+	 * Returns the height of the world.
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * Returns the number of creatures in the world.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the species with the given engine index.
+	 */
+	public Species species(int s) {
+		return species[s];
+	}
+
+	/**
+	 * Returns the number of species the engine was created with.
+	 */
+	public int numSpecies() {
+		return species.length;
+	}
+
+	/**
+	 * Limits every creature to budget instructions per turn, and applies policy
+	 * to creatures that reach the limit without acting. Set it before the
+	 * first round: the code each species runs can depend on the budget.
+	 * 
+	 * @throws IllegalArgumentException if budget is not positive
+	 */
+	public void setInstructionBudget(int budget, BudgetPolicy policy) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("budget must be positive.");
+		}
+		instructionBudget = budget;
+		budgetPolicy = policy;
+		loadPrograms();
+	}
+
+	/*
+	 * Fetches the code each species runs under the current budget.
+	 */
+	private void loadPrograms() {
+		for (int s = 0; s < species.length; s++) {
+			code[s] = species[s].code(instructionBudget);
+			tables[s] = species[s].transitions(instructionBudget);
+			if (compiled != null) {
+				compiled[s] = species[s].compiled(instructionBudget);
+			}
+		}
+	}
+
+	/**
+	 * Sets the seed that drives every ifrandom in the simulation. Two engines
+	 * with the same species, creatures and seed play out identically.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the seed of the simulation.
+	 */
+	public long seed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the number of rounds played so far.
+	 */
+	public long round() {
+		return round;
+	}
+
+	/**
+	 * Sets how turns are worked out. TABLE is the default. Choosing COMPILED
+	 * compiles every species program that has not been compiled yet; any
+	 * that cannot be compiled are interpreted.
+	 */
+	public void setBackend(Backend backend) {
+		if (backend == Backend.COMPILED && compiled == null) {
+			compiled = new CompiledProgram[species.length];
+			for (int s = 0; s < species.length; s++) {
+				compiled[s] = species[s].compiled(instructionBudget);
+			}
+		}
+		this.backend = backend;
+	}
+
+	/**
+	 * Returns whether pos is in the world or not.
+	 */
+	public boolean inRange(Position pos) {
+		return pos.getX() >= 0 && pos.getX() < width && pos.getY() >= 0 && pos.getY() < height;
+	}
+
+	/**
+	 * Put a new creature of species s on the square pos, facing dir. It starts
+	 * at step #1 of its program.
+	 * 
+	 * @return the index of the new creature.
+	 * @throws IllegalArgumentException if pos is not in range or is occupied
+	 */
+	public int add(int s, Position pos, int dir) {
+		int cell = cellOf(pos);
+		if (occupant[cell] != EMPTY) {
+			throw new IllegalArgumentException("pos is occupied.");
+		}
+		if (count == cellOf.length) {
+			grow();
+		}
+		int c = count++;
+		cellSpecies[cell] = (short) s;
+		dirOf[c] = (byte) dir;
+		pcOf[c] = 1;
+		cellOf[c] = cell;
+		occupant[cell] = c;
+		populationOf[s]++;
+		if (hashing) {
+			stateHash ^= stateKey(c, cell, s, dir, 1);
+		}
+		return c;
+	}
+
+	/**
+	 * Place perSpecies creatures of every species on distinct random empty
+	 * squares, facing random directions, species 0 first. Takes time
+	 * proportional to the number of creatures placed.
+	 * 
+	 * @pre the world is empty.
+	 * @throws IllegalArgumentException if the creatures do not fit
+	 */
+	public void populate(int perSpecies, SplittableRandom rand) {
+		int[] squares = Placement.sample(width * height, species.length * perSpecies, rand);
+		for (int s = 0; s < species.length; s++) {
+			for (int j = 0; j < perSpecies; j++) {
+				int square = squares[s * perSpecies + j];
+				add(s, new Position(square % width, square / width), rand.nextInt(4));
+			}
+		}
+	}
+
+	/**
+	 * Returns the engine index of the species on pos, or EMPTY.
+	 * 
+	 * @throws IllegalArgumentException if pos is not in range
+	 */
+	public int speciesAt(Position pos) {
+		return cellSpecies[cellOf(pos)];
+	}
+
+	/**
+	 * Returns the direction of the creature on pos.
+	 * 
+	 * @pre pos is occupied.
+	 */
+	public int directionAt(Position pos) {
+		return dirOf[occupant[cellOf(pos)]];
+	}
+
+	/**
+	 * Returns the number of creatures of species s.
+	 */
+	public int population(int s) {
+		return populationOf[s];
+	}
+
+	/**
+	 * Gives each creature one turn.
+	 */
+	public void giveEachCreatureOneTurn() {
+		for (int c = 0; c < count; c++) {
+			takeOneTurn(c);
+		}
+		round++;
+	}
+
+	/**
+	 * Runs the simulation for the given number of rounds.
+	 */
+	public void simulate(int rounds) {
+		for (int r = 0; r < rounds; r++) {
+			giveEachCreatureOneTurn();
+		}
+	}
+
+	/**
+	 * How a call to playOut ended.
+	 */
+	public enum Ending {
+		/** Every round was played. */
+		ROUNDS,
+		/** No more than one species had creatures left. */
+		ONE_SPECIES,
+		/** A round left every creature as it found it. */
+		FIXED_POINT,
+		/** The world came back to a state it had been in before. */
+		CYCLE
+	}
+
+	/** The longest cycle, in rounds, that playOut looks for. */
+	public static final int LONGEST_CYCLE = 64;
+
+	/**
+	 * Returns the round the last call to playOut stopped playing at: the
+	 * round it ended at if every round was played, and otherwise the round at
+	 * which the rest were skipped.
+	 */
+	public long stoppedAt() {
+		return stoppedAt;
+	}
+
+	/**
+	 * Runs the simulation for the given number of rounds, like simulate, but
+	 * stops as soon as the populations cannot change any more:
+	 * 
+	 * <ul>
+	 * <li>When no more than one species is left, nothing can be infected, so
+	 * the rest of the rounds are not played. The populations are those at the
+	 * end, but the creatures stay where they were when play stopped.</li>
+	 * <li>When none of the species left uses ifrandom, every round is decided
+	 * by the state of the creatures alone, so once the world returns to an
+	 * earlier state it repeats from there. A hash of the state is kept up to
+	 * date on every move and compared with those of the last LONGEST_CYCLE
+	 * rounds. A match is confirmed by comparing the whole state one period
+	 * later, and then only the rounds left over after whole periods are
+	 * played. The world ends exactly as simulate would leave it.</li>
+	 * </ul>
+	 * 
+	 * In both cases round() ends rounds later, as with simulate, and
+	 * stoppedAt() tells the round play actually stopped at. Species that
+	 * would have been flagged for running out of budget in the rounds skipped
+	 * when one species is left are not flagged.
+	 * 
+	 * @return how the simulation ended.
+	 */
+	public Ending playOut(int rounds) {
+		long end = round + rounds;
+		long start = round;
+		stoppedAt = end;
+		long[] seen = new long[LONGEST_CYCLE + 1]; // the hash after round r is at r % seen.length
+		int[] snapshot = null; // the state to confirm a cycle against
+		long snapshotRound = 0;
+		int period = 0;
+
+		hashing = true;
+		stateHash = 0;
+		for (int c = 0; c < count; c++) {
+			int cell = cellOf[c];
+			stateHash ^= stateKey(c, cell, cellSpecies[cell], dirOf[c], pcOf[c]);
+		}
+		try {
+			while (round < end) {
+				if (speciesLeft() <= 1) {
+					stoppedAt = round;
+					round = end;
+					return Ending.ONE_SPECIES;
+				}
+				seen[(int) (round % seen.length)] = stateHash;
+				giveEachCreatureOneTurn();
+
+				if (snapshot != null && round == snapshotRound + period) {
+					if (sameState(snapshot)) {
+						for (long r = (end - round) % period; r > 0; r--) {
+							giveEachCreatureOneTurn();
+						}
+						stoppedAt = round;
+						round = end;
+						return (period == 1) ? Ending.FIXED_POINT : Ending.CYCLE;
+					}
+					// the hashes collided
+					snapshot = null;
+				}
+				if (snapshot == null && !randomLeft()) {
+					long furthest = Math.min(LONGEST_CYCLE, round - start);
+					for (int p = 1; p <= furthest; p++) {
+						if (seen[(int) ((round - p) % seen.length)] == stateHash) {
+							if (round + p <= end) {
+								snapshot = snapshotState();
+								snapshotRound = round;
+								period = p;
+							}
+							break;
+						}
+					}
+				}
+			}
+			return Ending.ROUNDS;
+		} finally {
+			hashing = false;
+		}
+	}
+
+	/*
+	 * The number of species with creatures left.
+	 */
+	private int speciesLeft() {
+		int n = 0;
+		for (int s = 0; s < species.length; s++) {
+			if (populationOf[s] > 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/*
+	 * Whether any species with creatures left uses ifrandom.
+	 */
+	private boolean randomLeft() {
+		for (int s = 0; s < species.length; s++) {
+			if (populationOf[s] > 0 && species[s].usesRandom()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * The square, species, direction and step of every creature.
+	 */
+	private int[] snapshotState() {
+		int[] state = new int[2 * count];
+		for (int c = 0; c < count; c++) {
+			int cell = cellOf[c];
+			state[2 * c] = cell;
+			state[2 * c + 1] = (cellSpecies[cell] << 18) | (dirOf[c] << 16) | pcOf[c];
+		}
+		return state;
+	}
+
+	private boolean sameState(int[] state) {
+		return Arrays.equals(state, snapshotState());
+	}
+
+	/*
+	 * The Zobrist key of creature c standing on cell as species s, facing dir,
+	 * at step pc. Keys are computed rather than looked up, since a table for
+	 * every square, species, direction and step would be far too big.
+	 */
+	static long stateKey(int c, int cell, int s, int dir, int pc) {
+		long packed = ((long) cell << 32) | ((long) s << 17) | (dir << 15) | pc;
+		return RandomBits.mix64(packed ^ RandomBits.mix64(c + 1));
+	}
+
+	/**
+	 * Build a World holding one Creature for every creature in the engine, with
+	 * the same species, position and direction. The copy is for inspection
+	 * through the usual World and Creature methods; the creatures in it start
+	 * at step #1 and changes to it do not affect the engine.
+	 */
+	public World toWorld() {
+		World world = new World(width, height);
+		world.setRenderSink(HeadlessRenderSink.INSTANCE);
+		world.setInstructionBudget(instructionBudget, budgetPolicy);
+		for (int c = 0; c < count; c++) {
+			int cell = cellOf[c];
+			Position pos = new Position(cell % stride - RING, cell / stride - RING);
+			world.set(pos, new Creature(species[cellSpecies[cell]], world, pos, dirOf[c]));
+		}
+		return world;
+	}
+
+	/*
+	 * Execute instructions for creature c until it performs an action or runs
+	 * out of budget. Mirrors Creature.takeOneTurn.
+	 */
+	private void takeOneTurn(int c) {
+		int cell = cellOf[c];
+		int s = cellSpecies[cell];
+		int dir = dirOf[c];
+		int pc = pcOf[c];
+		int at = next(c, cell, s, dir, pc);
+		if (at < 0) {
+			// no action this turn
+			pcOf[c] = (short) -at;
+			if (hashing) {
+				stateHash ^= stateKey(c, cell, s, dir, pc) ^ stateKey(c, cell, s, dir, -at);
+			}
+			return;
+		}
+
+		int front = cell + offset[dir];
+		int instruction = code[s][at];
+		switch (instruction & PackedCode.OPCODE_MASK) {
+
+		case Instruction.HOP:
+			if (cellSpecies[front] == EMPTY) {
+				cellSpecies[cell] = EMPTY;
+				occupant[cell] = EMPTY;
+				cellSpecies[front] = (short) s;
+				occupant[front] = c;
+				cellOf[c] = front;
+			}
+			break;
+
+		case Instruction.LEFT:
+			dirOf[c] = (byte) Creature.leftFrom(dir);
+			break;
+
+		case Instruction.RIGHT:
+			dirOf[c] = (byte) Creature.rightFrom(dir);
+			break;
+
+		case Instruction.INFECT:
+			int ahead = cellSpecies[front];
+			if (ahead >= 0 && ahead != s) {
+				int victim = occupant[front];
+				int start = infectStart(instruction);
+				if (hashing) {
+					stateHash ^= stateKey(victim, front, ahead, dirOf[victim], pcOf[victim])
+							^ stateKey(victim, front, s, dirOf[victim], start);
+				}
+				cellSpecies[front] = (short) s;
+				pcOf[victim] = (short) start;
+				populationOf[ahead]--;
+				populationOf[s]++;
+			}
+			break;
+		}
+		pcOf[c] = (short) (at + 1);
+		if (hashing) {
+			stateHash ^= stateKey(c, cell, s, dir, pc) ^ stateKey(c, cellOf[c], s, dirOf[c], at + 1);
+		}
+	}
+
+	/*
+	 * Returns what decide(c, cell, s, dir, pc) returns, using the chosen
+	 * backend when it covers the case.
+	 */
+	int next(int c, int cell, int s, int dir, int pc) {
+		if (backend == Backend.TABLE) {
+			int sensor = sense(cell, s, dir);
+			TransitionTable table = tables[s];
+			long bits = table.needsRandom(pc, sensor) ? RandomBits.forTurn(seed, round, c) : 0;
+			int entry = table.lookup(pc, sensor, bits);
+			if (entry != TransitionTable.FALLBACK && TransitionTable.steps(entry) < instructionBudget) {
+				return TransitionTable.actionPc(entry);
+			}
+		} else if (backend == Backend.COMPILED && compiled[s] != null) {
+			long bits = species[s].usesRandom() ? RandomBits.forTurn(seed, round, c) : 0;
+			int at = compiled[s].run(pc, sense(cell, s, dir), bits, instructionBudget);
+			if (at <= -CompiledProgram.OUT_OF_BUDGET) {
+				at += CompiledProgram.OUT_OF_BUDGET;
+				if (budgetPolicy == BudgetPolicy.FLAG) {
+					species[s].flag();
+				}
+			}
+			return at;
+		}
+		return decide(c, cell, s, dir, pc);
+	}
+
+	/*
+	 * Returns what a creature of species s on cell facing dir senses, as a
+	 * TransitionTable sensor value.
+	 */
+	int sense(int cell, int s, int dir) {
+		return sense(cellSpecies, cell + offset[dir], offset[dir], s);
+	}
+
+	/*
+	 * Returns what a creature of species s senses on a board laid out like
+	 * GridEngine's, with front the square it faces and step the offset of its
+	 * direction.
+	 */
+	static int sense(short[] cellSpecies, int front, int step, int s) {
+		int ahead = cellSpecies[front];
+		int ahead2 = cellSpecies[front + step];
+		int sensor;
+		if (ahead == WALL) {
+			sensor = TransitionTable.SENSE_WALL;
+		} else if (ahead == EMPTY) {
+			sensor = TransitionTable.SENSE_EMPTY;
+		} else if (ahead == s) {
+			sensor = TransitionTable.SENSE_SAME;
+		} else {
+			sensor = TransitionTable.SENSE_ENEMY;
+		}
+		if (ahead2 >= 0 && ahead2 != s) {
+			sensor += TransitionTable.SENSE_ENEMY2;
+		}
+		return sensor;
+	}
+
+	/*
+	 * Runs the program of creature c, of species s on square cell facing dir,
+	 * from step pc up to its next action, without changing anything but the
+	 * species' flag. Returns the step of the hop, left, right or infect that
+	 * ends the turn, or minus the step to resume from if the creature does not
+	 * act this turn.
+	 */
+	int decide(int c, int cell, int s, int dir, int pc) {
+		int at = interpret(code[s], cellSpecies, cell + offset[dir], offset[dir], s, pc, instructionBudget, seed,
+				round, c);
+		if (at <= -CompiledProgram.OUT_OF_BUDGET) {
+			at += CompiledProgram.OUT_OF_BUDGET;
+			if (budgetPolicy == BudgetPolicy.FLAG) {
+				species[s].flag();
+			}
+		}
+		return at;
+	}
+
+	/*
+	 * The interpreter behind decide, for any board laid out like GridEngine's:
+	 * program is the creature's code, front the square it faces and step the
+	 * offset of its direction. Random bits come from RandomBits.forTurn(seed,
+	 * round, c). Returns the step of the action reached, or minus the step to
+	 * resume from, with CompiledProgram.OUT_OF_BUDGET added to the step when
+	 * the budget ran out.
+	 */
+	static int interpret(int[] program, short[] cellSpecies, int front, int step, int s, int pc, int budget,
+			long seed, long round, int c) {
+		int ahead = cellSpecies[front];
+
+		// random bits for this turn, drawn 64 at a time and only if ifrandom
+		// is reached; word is the last 64 drawn, bits what is left of them
+		long word = 0;
+		long bits = 0;
+		int bitsLeft = -1;
+
+		for (int executed = 0; executed < budget; executed++) {
+			int instruction = program[pc];
+			int address = instruction >>> PackedCode.OPCODE_BITS;
+
+			switch (instruction & PackedCode.OPCODE_MASK) {
+
+			case Instruction.HOP:
+			case Instruction.LEFT:
+			case Instruction.RIGHT:
+			case Instruction.INFECT:
+				return pc;
+
+			case Instruction.IFEMPTY:
+				pc = (ahead == EMPTY) ? address : pc + 1;
+				break;
+
+			case Instruction.IFWALL:
+				pc = (ahead == WALL) ? address : pc + 1;
+				break;
+
+			case Instruction.IFSAME:
+				pc = (ahead == s) ? address : pc + 1;
+				break;
+
+			case Instruction.IFENEMY:
+				pc = (ahead >= 0 && ahead != s) ? address : pc + 1;
+				break;
+
+			case Instruction.IFRANDOM:
+				if (bitsLeft <= 0) {
+					word = (bitsLeft < 0) ? RandomBits.forTurn(seed, round, c) : RandomBits.next(word);
+					bits = word;
+					bitsLeft = 64;
+				}
+				pc = ((bits & 1) != 0) ? address : pc + 1;
+				bits >>>= 1;
+				bitsLeft--;
+				break;
+
+			case Instruction.GO:
+				pc = address;
+				break;
+
+			case Instruction.IF2ENEMY:
+				// a WALL in front is backed by the second ring, so this read
+				// never leaves the board
+				int ahead2 = cellSpecies[front + step];
+				pc = (ahead2 >= 0 && ahead2 != s) ? address : pc + 1;
+				break;
+
+			// superinstructions: when taken, the action at address is
+			// returned in the same pass if the budget allows the extra step
+			case ProgramOptimizer.IFENEMY_INFECT:
+				if (ahead >= 0 && ahead != s) {
+					pc = address;
+					if (executed + 1 < budget) {
+						return pc;
+					}
+				} else {
+					pc++;
+				}
+				break;
+
+			case ProgramOptimizer.IFEMPTY_HOP:
+				if (ahead == EMPTY) {
+					pc = address;
+					if (executed + 1 < budget) {
+						return pc;
+					}
+				} else {
+					pc++;
+				}
+				break;
+
+			default:
+				// not a valid instruction, the creature stays stuck on it
+				return -pc;
+			}
+		}
+
+		// the budget ran out before an action was reached
+		return -(pc + CompiledProgram.OUT_OF_BUDGET);
+	}
+
+	/*
+	 * Returns the step an infected creature starts at: the address of the
+	 * infect instruction, or step #1 if it has none.
+	 */
+	static int infectStart(int instruction) {
+		int address = instruction >>> PackedCode.OPCODE_BITS;
+		return (address == 0) ? 1 : address;
+	}
+
+	private int cellOf(Position pos) {
+		if (!inRange(pos)) {
+			throw new IllegalArgumentException("pos is not in range.");
+		}
+		return (pos.getY() + RING) * stride + pos.getX() + RING;
+	}
+
+	private void grow() {
+		int capacity = cellOf.length * 2;
+		dirOf = Arrays.copyOf(dirOf, capacity);
+		pcOf = Arrays.copyOf(pcOf, capacity);
+		cellOf = Arrays.copyOf(cellOf, capacity);
+	}
+
+	/**
+	 * Runs a headless match between the species files named on the command
+	 * line and prints the number of survivors of each species. The world size,
+	 * population, rounds, seed and budget options of DarwinConfig.parse may
+	 * come before the file names, "-simultaneous" plays the match on a
+	 * ParallelEngine, with "-threads n" threads, and "-backend compiled"
+	 * picks the backend. The match ends early once the populations are settled, see
+	 * playOut.
+	 */
+	public static void main(String[] args) {
+		ForkJoinPool pool = null;
+		try {
+			DarwinConfig config = new DarwinConfig();
+			args = config.parse(args);
+			Species[] species = new Species[args.length];
+			for (int i = 0; i < args.length; i++) {
+				species[i] = SpeciesRegistry.shared().load("./Creatures/" + args[i]);
+			}
+			GridEngine engine;
+			if (config.isSimultaneous()) {
+				int threads = (config.threads() > 0) ? config.threads() : Runtime.getRuntime().availableProcessors();
+				pool = new ForkJoinPool(threads);
+				engine = new ParallelEngine(config.width(), config.height(), species, pool);
+			} else {
+				engine = new GridEngine(config.width(), config.height(), species);
+			}
+			engine.setInstructionBudget(config.instructionBudget(), config.budgetPolicy());
+			engine.setBackend(config.backend());
+
+			SplittableRandom rand = new SplittableRandom(config.seed());
+			engine.setSeed(rand.nextLong());
+			engine.populate(config.creaturesPerSpecies(), rand);
+
+			engine.playOut(config.rounds());
+			for (int s = 0; s < species.length; s++) {
+				System.out.println(species[s].getName() + ": " + engine.population(s));
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("File not found");
+			System.err.println(e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+}
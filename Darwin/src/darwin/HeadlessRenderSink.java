@@ -0,0 +1,24 @@
+package darwin;
+
+/**
+ * A RenderSink that discards every update. Use this to run the simulation on a
+ * machine with no display, or whenever only the final state of the World is
+ * of interest.
+ */
+public class HeadlessRenderSink implements RenderSink {
+
+	/** The shared instance; the sink has no state. */
+	public static final HeadlessRenderSink INSTANCE = new HeadlessRenderSink();
+
+	/**
+	 * Ignore the update.
+	 */
+	public void displaySquare(Position pos, char c, int dir, String color) {
+	}
+
+	/**
+	 * Nothing is buffered, so there is nothing to publish.
+	 */
+	public void endRound() {
+	}
+}
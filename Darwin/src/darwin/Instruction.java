@@ -9,13 +9,13 @@ package darwin;
  * <p>
  * 
  * <pre>
- *  hop left right infect ifempty ifwall ifsame ifenemy ifrandom go
+ *  hop left right infect ifempty ifwall ifsame ifenemy ifrandom go if2enemy
  * </pre>
  * 
  * The following instructions require a target address to jump to:
  * 
  * <pre>
- *  ifempty, ifwall, ifsame, ifenemy, ifrandom, go</pre>
+ *  ifempty, ifwall, ifsame, ifenemy, ifrandom, go, if2enemy</pre>
  * 
  *  
  */
@@ -41,13 +41,15 @@ public class Instruction {
 	public static final int IFRANDOM = 9;
 	/** opcode for the go instruction */
 	public static final int GO = 10;
+	/** opcode for the if2enemy instruction */
+	public static final int IF2ENEMY = 11;
 
 	private int opcode; /** the opcode */
 	private int address; /** the address */
 
 	/**
 	 * Creates a new instruction. address is the target of the operation, if one
-	 * is needed. Otherwise it is not used. @pre 0 < opcode <= GO.
+	 * is needed. Otherwise it is not used. @pre 0 < opcode <= IF2ENEMY.
 	 */
 	public Instruction(int opcode, int address) {
 		this.opcode = opcode;
@@ -80,7 +82,7 @@ public class Instruction {
 			case RIGHT :
 				return "right";
 			case INFECT :
-				return "infect";
+				return (address == 0) ? "infect" : "infect " + address;
 			case IFEMPTY :
 				return "ifempty " + address;
 			case IFWALL :
@@ -93,6 +95,8 @@ public class Instruction {
 				return "ifrandom " + address;
 			case GO :
 				return "go " + address;
+			case IF2ENEMY :
+				return "if2enemy " + address;
 			default :
 				return "BAD INSTRUCTION: " + opcode + " " + address;
 		}
@@ -0,0 +1,284 @@
+package darwin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Evolves species on several islands at once. Each island is an Evolution of
+ * its own, with its own population and seed, that evolves on a thread of its
+ * own and plays its matches there, so islands never wait for each other and
+ * the generations run grows with the number of cores.
+ *
+ * The islands form a ring. Every few generations each island sends copies of
+ * its fittest species to the next island, which takes them in place of its
+ * least fit at its next generation. Migrants are passed through a lock-free
+ * queue per island: the sender never waits, and the receiver takes whatever
+ * has arrived. Between migrations the islands drift apart, which keeps the
+ * whole population more varied than one Evolution of the same size.
+ *
+ * Every island replays exactly from its seed when there is no migration.
+ * With migration, when a migrant arrives depends on how fast the other
+ * island ran, so runs can differ.
+ */
+public class IslandEvolution {
+
+	private final Evolution[] islands;
+	private final List<ConcurrentLinkedQueue<Species[]>> inbox;
+	private int interval = 5;
+	private int migrants = 2;
+
+	// per island, the best fitness of each generation of the last run
+	private double[][] bestFitness;
+
+	/**
+	 * Create islands populations of size species each, bred from ancestors
+	 * and measured against opponents with the match settings of config. The
+	 * seed of each island is drawn from the config's seed.
+	 *
+	 * @throws IllegalArgumentException if islands is not positive, or an
+	 *         island cannot be made as for Evolution
+	 */
+	public IslandEvolution(Species[] ancestors, Species[] opponents, int islands, int size, DarwinConfig config) {
+		if (islands <= 0) {
+			throw new IllegalArgumentException("there must be at least one island.");
+		}
+		SplittableRandom rand = new SplittableRandom(config.seed());
+		this.islands = new Evolution[islands];
+		inbox = new ArrayList<ConcurrentLinkedQueue<Species[]>>(islands);
+		for (int i = 0; i < islands; i++) {
+			this.islands[i] = new Evolution(ancestors, opponents, size, config, rand.nextLong());
+			inbox.add(new ConcurrentLinkedQueue<Species[]>());
+		}
+	}
+
+	/**
+	 * Sets how often migrants are sent, in generations, and how many each
+	 * island sends. An interval of 0 turns migration off. The defaults are
+	 * every 5 generations and 2 migrants.
+	 *
+	 * @throws IllegalArgumentException if either is negative
+	 */
+	public void setMigration(int interval, int migrants) {
+		if (interval < 0 || migrants < 0) {
+			throw new IllegalArgumentException("interval and migrants must not be negative.");
+		}
+		this.interval = interval;
+		this.migrants = migrants;
+	}
+
+	/**
+	 * Returns the number of islands.
+	 */
+	public int size() {
+		return islands.length;
+	}
+
+	/**
+	 * Returns island i.
+	 */
+	public Evolution island(int i) {
+		return islands[i];
+	}
+
+	/**
+	 * Returns the best fitness on island i after each generation of the last
+	 * run, the first generation first.
+	 * 
+	 * @pre run has been called.
+	 * @throws IllegalStateException if run has not been called
+	 */
+	public double[] bestFitness(int i) {
+		requireRun();
+		return bestFitness[i].clone();
+	}
+
+	/**
+	 * Evolve every island for the given number of generations, each on a
+	 * thread of its own, and wait for all of them. Each island ends evaluated.
+	 *
+	 * @throws IllegalStateException if an island fails or the wait is
+	 *         interrupted
+	 */
+	public void run(final int generations) {
+		bestFitness = new double[islands.length][generations + 1];
+		final RuntimeException[] failure = new RuntimeException[islands.length];
+		Thread[] threads = new Thread[islands.length];
+		for (int i = 0; i < islands.length; i++) {
+			final int island = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						evolve(island, generations);
+					} catch (RuntimeException e) {
+						failure[island] = e;
+					}
+				}
+			}, "island-" + i);
+			threads[i].start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while islands were evolving.", e);
+		}
+		for (RuntimeException e : failure) {
+			if (e != null) {
+				throw new IllegalStateException("an island failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/*
+	 * The loop of one island's thread.
+	 */
+	private void evolve(int i, int generations) {
+		Evolution island = islands[i];
+		ConcurrentLinkedQueue<Species[]> own = inbox.get(i);
+		ConcurrentLinkedQueue<Species[]> next = inbox.get((i + 1) % islands.length);
+		for (int g = 0; g <= generations; g++) {
+			if (g > 0) {
+				island.breed();
+			}
+			double[] fitness = island.evaluate();
+			bestFitness[i][g] = fitness[island.best()];
+			if (g == generations) {
+				break;
+			}
+
+			if (interval > 0 && islands.length > 1 && migrants > 0) {
+				if ((g + 1) % interval == 0) {
+					next.offer(island.fittest(migrants));
+				}
+				Species[] arrived;
+				while ((arrived = own.poll()) != null) {
+					island.immigrate(arrived);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the fittest species over all islands, as last evaluated.
+	 * 
+	 * @pre run has been called.
+	 * @throws IllegalStateException if run has not been called
+	 */
+	public Species best() {
+		requireRun();
+		Species best = null;
+		double most = -1;
+		for (int i = 0; i < islands.length; i++) {
+			int b = islands[i].best();
+			double fitness = bestFitness[i][bestFitness[i].length - 1];
+			if (fitness > most) {
+				most = fitness;
+				best = islands[i].member(b);
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Throws IllegalStateException if run has not filled in bestFitness yet.
+	 */
+	private void requireRun() {
+		if (bestFitness == null) {
+			throw new IllegalStateException("run has not been called.");
+		}
+	}
+
+	/**
+	 * Evolves species on islands from those in a directory, ./Creatures by
+	 * default, which are also the opponents, and prints the best fitness on
+	 * each island and the generations run per hour. A species whose program
+	 * can loop without acting is rejected. Besides the options of
+	 * DarwinConfig.parse it takes
+	 *
+	 * <pre>
+	 *  -islands n      n islands (default: one per core)
+	 *  -generations n  breed n generations on each island (default 50)
+	 *  -population n   n species per island (default 20)
+	 *  -migrate k m    send m migrants every k generations, 0 for none
+	 *                  (default 5 2)
+	 *  -out file       write the fittest species to file as "Evolved"
+	 *                  (default: print it)
+	 * </pre>
+	 */
+	public static void main(String[] args) {
+		try {
+			int islands = Runtime.getRuntime().availableProcessors();
+			int generations = 50;
+			int size = 20;
+			int interval = 5;
+			int migrants = 2;
+			String out = null;
+			ArrayList<String> rest = new ArrayList<String>();
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-islands")) {
+					DarwinConfig.requireValues(args, i, 1);
+					islands = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-generations")) {
+					DarwinConfig.requireValues(args, i, 1);
+					generations = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-population")) {
+					DarwinConfig.requireValues(args, i, 1);
+					size = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-migrate")) {
+					DarwinConfig.requireValues(args, i, 2);
+					interval = Integer.parseInt(args[++i]);
+					migrants = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-out")) {
+					DarwinConfig.requireValues(args, i, 1);
+					out = args[++i];
+				} else {
+					rest.add(args[i]);
+				}
+			}
+			DarwinConfig config = new DarwinConfig();
+			String[] dirs = config.parse(rest.toArray(new String[rest.size()]));
+			File directory = new File((dirs.length > 0) ? dirs[0] : "./Creatures");
+
+			SpeciesRegistry.shared().setStrict(true);
+			List<Species> loaded = SpeciesRegistry.shared().loadAll(directory);
+			Species[] roster = loaded.toArray(new Species[loaded.size()]);
+			IslandEvolution evolution = new IslandEvolution(roster, roster, islands, size, config);
+			evolution.setMigration(interval, migrants);
+
+			long start = System.nanoTime();
+			evolution.run(generations);
+			double hours = (System.nanoTime() - start) / 3.6e12;
+
+			for (int i = 0; i < islands; i++) {
+				double[] best = evolution.bestFitness(i);
+				System.out.println(String.format("island %d: best %.3f, from %.3f", i, best[best.length - 1],
+						best[0]));
+			}
+			System.out.println(String.format("%.0f generations per hour", islands * generations / hours));
+
+			String text = Evolution.toFileText(evolution.best(), "Evolved");
+			if (out == null) {
+				System.out.print(text);
+			} else {
+				PrintWriter writer = new PrintWriter(out);
+				try {
+					writer.print(text);
+				} finally {
+					writer.close();
+				}
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("File not found");
+			System.err.println(e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package darwin;
+
+import java.util.SplittableRandom;
+
+/**
+ * One headless game between two or more species: the world size, population,
+ * rounds, budget and backend are taken from a DarwinConfig when the match is
+ * made, and the seed fixes everything else. Playing the same match again
+ * gives the same result, which is the result GridEngine.main prints for the
+ * same settings.
+ */
+public final class Match {
+
+	private final Species[] species;
+	private final int width;
+	private final int height;
+	private final int creaturesPerSpecies;
+	private final int rounds;
+	private final int instructionBudget;
+	private final BudgetPolicy budgetPolicy;
+	private final GridEngine.Backend backend;
+	private final long seed;
+
+	/**
+	 * Create a match between the given species with the settings of config,
+	 * played from seed. Later changes to config do not affect the match.
+	 */
+	public Match(Species[] species, DarwinConfig config, long seed) {
+		this.species = species.clone();
+		width = config.width();
+		height = config.height();
+		creaturesPerSpecies = config.creaturesPerSpecies();
+		rounds = config.rounds();
+		instructionBudget = config.instructionBudget();
+		budgetPolicy = config.budgetPolicy();
+		backend = config.backend();
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the number of species in the match.
+	 */
+	public int size() {
+		return species.length;
+	}
+
+	/**
+	 * Returns species i of the match.
+	 */
+	public Species species(int i) {
+		return species[i];
+	}
+
+	/**
+	 * Returns the number of columns in the world.
+	 */
+	public int width() {
+		return width;
+	}
+
+	/**
+	 * Returns the number of rows in the world.
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * Returns the number of creatures placed for each species.
+	 */
+	public int creaturesPerSpecies() {
+		return creaturesPerSpecies;
+	}
+
+	/**
+	 * Returns the number of rounds the match lasts.
+	 */
+	public int rounds() {
+		return rounds;
+	}
+
+	/**
+	 * Returns the most instructions a creature may execute per turn.
+	 */
+	public int instructionBudget() {
+		return instructionBudget;
+	}
+
+	/**
+	 * Returns what happens to creatures that exceed the budget.
+	 */
+	public BudgetPolicy budgetPolicy() {
+		return budgetPolicy;
+	}
+
+	/**
+	 * Returns the seed the match is played from.
+	 */
+	public long seed() {
+		return seed;
+	}
+
+	/**
+	 * Play the match on a new GridEngine, stopping once the populations are
+	 * settled.
+	 *
+	 * @return the survivors of each species, and the rounds played before
+	 *         they were settled.
+	 * @throws IllegalArgumentException if the species do not fit in the world
+	 */
+	public MatchResult play() {
+		GridEngine engine = new GridEngine(width, height, species);
+		engine.setInstructionBudget(instructionBudget, budgetPolicy);
+		engine.setBackend(backend);
+
+		SplittableRandom rand = new SplittableRandom(seed);
+		engine.setSeed(rand.nextLong());
+		engine.populate(creaturesPerSpecies, rand);
+		engine.playOut(rounds);
+
+		int[] survivors = new int[species.length];
+		for (int s = 0; s < species.length; s++) {
+			survivors[s] = engine.population(s);
+		}
+		return new MatchResult(survivors, (int) engine.stoppedAt());
+	}
+}
@@ -0,0 +1,331 @@
+package darwin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of matches already played, kept in a file so that a match played
+ * again, in this run or a later one, is looked up instead of simulated.
+ *
+ * A match is known by the behavior hash of each of its species under the
+ * match's budget, in order, the world size, population, rounds, instruction
+ * budget and seed, and ENGINE_VERSION. The behavior hash comes from
+ * CanonicalProgram, so a renamed or rewritten program that behaves the same
+ * finds the same results, as long as the budget cannot stop it. The
+ * backend and budget policy are left out, since they never change the
+ * survivors.
+ *
+ * The file is a log that is only ever appended to: one record per result,
+ * each with a checksum. Opening the cache reads the log once to build an
+ * index from key to record; a record cut short by a crash is dropped and
+ * written over. Results looked up are kept in memory, the most recently used
+ * first, up to a set number. All methods are safe to call from several
+ * threads.
+ */
+public final class MatchCache implements Closeable {
+
+	/**
+	 * The version of the rules results were played under. Change it whenever
+	 * a change to the engines changes the outcome of a match, so that older
+	 * results are no longer found.
+	 */
+	public static final int ENGINE_VERSION = 2;
+
+	private static final int MAGIC = 0xda4c0002;
+
+	// the first record of a cache written before rounds were recorded; its
+	// results are of an older ENGINE_VERSION, so the file is emptied
+	private static final int OLD_MAGIC = 0xda4c0001;
+
+	// key fields before the behavior hashes
+	private static final int SETTINGS = 7;
+
+	private final RandomAccessFile file;
+	private final HashMap<Key, Long> index = new HashMap<Key, Long>();
+	private final LinkedHashMap<Key, MatchResult> recent;
+	private long end; // where the next record goes
+	private int hits;
+	private int misses;
+
+	/**
+	 * Open the cache in file, creating the file if need be, keeping up to
+	 * capacity results in memory.
+	 *
+	 * @throws IOException if the file cannot be read or written, or holds
+	 *         something other than a match cache
+	 * @throws IllegalArgumentException if capacity is negative
+	 */
+	public MatchCache(File file, final int capacity) throws IOException {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative.");
+		}
+		this.file = new RandomAccessFile(file, "rw");
+		recent = new LinkedHashMap<Key, MatchResult>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, MatchResult> eldest) {
+				return size() > capacity;
+			}
+		};
+		try {
+			scan();
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the result of match if it has been played before, or null.
+	 * Species are not flagged for running out of budget in a match that is
+	 * looked up.
+	 *
+	 * @throws UncheckedIOException if the file cannot be read
+	 */
+	public synchronized MatchResult get(Match match) {
+		Key key = keyOf(match);
+		MatchResult result = recent.get(key);
+		if (result == null) {
+			Long at = index.get(key);
+			if (at != null) {
+				result = read(at, key);
+				recent.put(key, result);
+			}
+		}
+		if (result == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return result;
+	}
+
+	/**
+	 * Record the result of match, unless a result for it is already known.
+	 *
+	 * @throws UncheckedIOException if the file cannot be written
+	 */
+	public synchronized void put(Match match, MatchResult result) {
+		Key key = keyOf(match);
+		if (index.containsKey(key)) {
+			return;
+		}
+		try {
+			file.seek(end);
+			file.write(record(key, result));
+			index.put(key, end);
+			end = file.getFilePointer();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		recent.put(key, result);
+	}
+
+	/**
+	 * Returns the result of match, looked up if it has been played before and
+	 * played and recorded if not. The match is played outside any lock, so
+	 * other threads can use the cache meanwhile.
+	 */
+	public MatchResult play(Match match) {
+		MatchResult result = get(match);
+		if (result == null) {
+			result = match.play();
+			put(match, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of results in the cache.
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the number of lookups that found a result.
+	 */
+	public synchronized int hits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups that found nothing.
+	 */
+	public synchronized int misses() {
+		return misses;
+	}
+
+	/**
+	 * Close the file. The cache cannot be used afterwards.
+	 */
+	public synchronized void close() throws IOException {
+		file.close();
+	}
+
+	/*
+	 * The key of a match: its settings, then the behavior of each species.
+	 */
+	private static Key keyOf(Match match) {
+		long[] fields = new long[SETTINGS + match.size()];
+		fields[0] = ENGINE_VERSION;
+		fields[1] = match.width();
+		fields[2] = match.height();
+		fields[3] = match.creaturesPerSpecies();
+		fields[4] = match.rounds();
+		fields[5] = match.instructionBudget();
+		fields[6] = match.seed();
+		for (int s = 0; s < match.size(); s++) {
+			fields[SETTINGS + s] = match.species(s).behaviorHash(match.instructionBudget());
+		}
+		return new Key(fields);
+	}
+
+	/*
+	 * A record: MAGIC, the number of species n, the n + SETTINGS key fields,
+	 * the n survivor counts, the rounds played, and a checksum of the fields,
+	 * counts and rounds.
+	 */
+	private static byte[] record(Key key, MatchResult result) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int n = result.size();
+		out.writeInt(MAGIC);
+		out.writeInt(n);
+		long sum = n;
+		for (long field : key.fields) {
+			out.writeLong(field);
+			sum = RandomBits.mix64(sum ^ field);
+		}
+		for (int s = 0; s < n; s++) {
+			out.writeInt(result.survivors(s));
+			sum = RandomBits.mix64(sum ^ result.survivors(s));
+		}
+		out.writeInt(result.rounds());
+		sum = RandomBits.mix64(sum ^ result.rounds());
+		out.writeLong(sum);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static int recordLength(int n) {
+		return 4 + 4 + 8 * (SETTINGS + n) + 4 * n + 4 + 8;
+	}
+
+	/*
+	 * Index every whole record in the file, and cut off anything after the
+	 * last one. A file whose first four bytes are not MAGIC is left alone; one
+	 * too short to tell, whose first record was cut short, or written in the
+	 * OLD_MAGIC format, is emptied.
+	 */
+	private void scan() throws IOException {
+		long length = file.length();
+		long at = 0;
+		byte[] head = new byte[8];
+		while (at + head.length <= length) {
+			file.seek(at);
+			file.readFully(head);
+			ByteBuffer h = ByteBuffer.wrap(head);
+			int magic = h.getInt();
+			int n = h.getInt();
+			if (magic != MAGIC || n <= 0 || n > Short.MAX_VALUE || at + recordLength(n) > length) {
+				break;
+			}
+			byte[] body = new byte[recordLength(n) - head.length];
+			file.readFully(body);
+			Key key = parse(n, ByteBuffer.wrap(body), null);
+			if (key == null) {
+				break;
+			}
+			index.put(key, at);
+			at += recordLength(n);
+		}
+		if (at == 0 && length >= 4) {
+			file.seek(0);
+			int first = file.readInt();
+			if (first != MAGIC && first != OLD_MAGIC) {
+				throw new IOException("not a match cache.");
+			}
+		}
+		if (at < length) {
+			file.setLength(at);
+		}
+		end = at;
+	}
+
+	/*
+	 * Reads the key of a record body, and its survivors and rounds into
+	 * survivors if that is not null, the rounds last. Returns null if the
+	 * checksum is wrong.
+	 */
+	private static Key parse(int n, ByteBuffer body, int[] survivors) {
+		long[] fields = new long[SETTINGS + n];
+		long sum = n;
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = body.getLong();
+			sum = RandomBits.mix64(sum ^ fields[i]);
+		}
+		for (int s = 0; s < n; s++) {
+			int count = body.getInt();
+			sum = RandomBits.mix64(sum ^ count);
+			if (survivors != null) {
+				survivors[s] = count;
+			}
+		}
+		int rounds = body.getInt();
+		sum = RandomBits.mix64(sum ^ rounds);
+		if (survivors != null) {
+			survivors[n] = rounds;
+		}
+		return (body.getLong() == sum) ? new Key(fields) : null;
+	}
+
+	/*
+	 * Reads the result recorded at the given offset for key.
+	 */
+	private MatchResult read(long at, Key key) {
+		int n = key.fields.length - SETTINGS;
+		byte[] record = new byte[recordLength(n)];
+		try {
+			file.seek(at);
+			file.readFully(record);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		ByteBuffer body = ByteBuffer.wrap(record, 8, record.length - 8);
+		int[] survivors = new int[n + 1];
+		if (!key.equals(parse(n, body, survivors))) {
+			throw new UncheckedIOException(new IOException("match cache record at " + at + " is damaged."));
+		}
+		return new MatchResult(Arrays.copyOf(survivors, n), survivors[n]);
+	}
+
+	/*
+	 * A long[] compared by contents, as a map key.
+	 */
+	private static class Key {
+		final long[] fields;
+		private final int hash;
+
+		Key(long[] fields) {
+			this.fields = fields;
+			hash = Arrays.hashCode(fields);
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Key && Arrays.equals(((Key) other).fields, fields);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package darwin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+
+/**
+ * Checks that MatchCache only finds results for matches that play the same,
+ * and survives a crash while writing. Run it as an application from the
+ * Darwin directory: each test prints whether it passed, and the run exits
+ * with status 1 if any failed.
+ */
+public class MatchCacheTest {
+
+	private int failures;
+
+	/*
+	 * Prints the outcome of a test; failure is null if it passed.
+	 */
+	private void report(String test, String failure) {
+		if (failure == null) {
+			System.out.println(test + " test passed.");
+		} else {
+			failures++;
+			System.out.println(test + " test failed: " + failure);
+		}
+	}
+
+	private static Species parse(String text) {
+		return new Species(new BufferedReader(new StringReader(text)));
+	}
+
+	/*
+	 * A match of s against opponent with the given budget.
+	 */
+	private static Match match(Species s, Species opponent, int budget) {
+		DarwinConfig config = new DarwinConfig();
+		config.setInstructionBudget(budget, BudgetPolicy.FORFEIT);
+		return new Match(new Species[] {s, opponent}, config, 1);
+	}
+
+	/**
+	 * A result recorded for one program is not found for another that plays
+	 * differently: two programs that loop without acting in different ways,
+	 * and two that only behave alike when the budget cannot stop them.
+	 */
+	public void testKeys() {
+		File f = null;
+		try {
+			f = File.createTempFile("darwin", ".cache");
+			Species rover = SpeciesRegistry.shared().load("./Creatures/Rover.txt");
+			Species a = parse("Aloop\nred\nifenemy 5\nifempty 1\nleft\ngo 1\ninfect\n");
+			Species b = parse("Bloop\nblue\nifenemy 6\nifempty 3\nifempty 1\nleft\ngo 1\ninfect\n");
+			Species c = parse("Short\ngreen\nifempty 4\nleft\ngo 1\nhop\ngo 1\n");
+			Species d = parse("Long\ngreen\ngo 2\ngo 3\nifempty 6\nleft\ngo 1\nhop\ngo 1\n");
+			MatchCache cache = new MatchCache(f, 16);
+			try {
+				cache.put(match(a, rover, World.DEFAULT_INSTRUCTION_BUDGET), new MatchResult(new int[] {1, 2}, 30));
+				if (cache.get(match(b, rover, World.DEFAULT_INSTRUCTION_BUDGET)) != null) {
+					report("Cache keys", "two different looping programs share a result");
+					return;
+				}
+				if (!c.sameBehavior(d)) {
+					report("Cache keys", "the two straight programs were expected to behave the same");
+					return;
+				}
+				cache.put(match(c, rover, World.DEFAULT_INSTRUCTION_BUDGET), new MatchResult(new int[] {3, 4}, 30));
+				cache.put(match(c, rover, 2), new MatchResult(new int[] {5, 6}, 30));
+				MatchResult shared = cache.get(match(d, rover, World.DEFAULT_INSTRUCTION_BUDGET));
+				if (shared == null || shared.survivors(0) != 3 || shared.rounds() != 30) {
+					report("Cache keys", "programs that behave the same do not share a result");
+					return;
+				}
+				if (cache.get(match(d, rover, 2)) != null) {
+					report("Cache keys", "programs stopped by the budget share a result");
+					return;
+				}
+			} finally {
+				cache.close();
+			}
+			report("Cache keys", null);
+		} catch (Exception | Error e) {
+			report("Cache keys", e.toString());
+		} finally {
+			if (f != null) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * A cache whose first record was cut short by a crash opens empty, while
+	 * a file that is not a cache is refused.
+	 */
+	public void testTornFirstRecord() {
+		File f = null;
+		try {
+			f = File.createTempFile("darwin", ".cache");
+			Species a = parse("Aloop\nred\nifenemy 5\nifempty 1\nleft\ngo 1\ninfect\n");
+			MatchCache cache = new MatchCache(f, 16);
+			cache.put(match(a, a, World.DEFAULT_INSTRUCTION_BUDGET), new MatchResult(new int[] {1, 2}, 30));
+			cache.close();
+			cache = new MatchCache(f, 16);
+			MatchResult read = cache.get(match(a, a, World.DEFAULT_INSTRUCTION_BUDGET));
+			cache.close();
+			if (read == null || read.survivors(1) != 2 || read.rounds() != 30) {
+				report("Torn first record", "a whole record was not read back");
+				return;
+			}
+			for (int keep : new int[] {(int) f.length() - 5, 2}) {
+				RandomAccessFile raw = new RandomAccessFile(f, "rw");
+				raw.setLength(keep);
+				raw.close();
+				cache = new MatchCache(f, 16);
+				int size = cache.size();
+				cache.close();
+				if (size != 0 || f.length() != 0) {
+					report("Torn first record", "a torn record of " + keep + " bytes was kept");
+					return;
+				}
+			}
+
+			RandomAccessFile raw = new RandomAccessFile(f, "rw");
+			raw.writeBytes("species");
+			raw.close();
+			try {
+				new MatchCache(f, 16).close();
+				report("Torn first record", "a file that is not a cache was opened");
+				return;
+			} catch (IOException e) {
+				// refused, as it should be
+			}
+			report("Torn first record", null);
+		} catch (Exception | Error e) {
+			report("Torn first record", e.toString());
+		} finally {
+			if (f != null) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Runs every test, and exits with status 1 if any failed.
+	 */
+	public static void main(String[] args) {
+		MatchCacheTest t = new MatchCacheTest();
+		t.testKeys();
+		t.testTornFirstRecord();
+		if (t.failures > 0) {
+			System.exit(1);
+		}
+	}
+}
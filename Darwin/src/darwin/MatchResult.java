@@ -0,0 +1,92 @@
+package darwin;
+
+import java.util.Arrays;
+
+/**
+ * The outcome of one Match: how many creatures of each species were left when
+ * it ended, and how many rounds were played before the populations were
+ * settled. Species are numbered as in the match.
+ */
+public final class MatchResult {
+
+	private final int[] survivors;
+	private final int rounds;
+
+	/**
+	 * Create a result from the survivors of each species and the number of
+	 * rounds played.
+	 */
+	public MatchResult(int[] survivors, int rounds) {
+		this.survivors = survivors.clone();
+		this.rounds = rounds;
+	}
+
+	/**
+	 * Returns the number of species in the match.
+	 */
+	public int size() {
+		return survivors.length;
+	}
+
+	/**
+	 * Returns the number of rounds played, which is less than the rounds of
+	 * the match if it stopped once the populations could not change.
+	 */
+	public int rounds() {
+		return rounds;
+	}
+
+	/**
+	 * Returns the number of creatures of species i left at the end.
+	 */
+	public int survivors(int i) {
+		return survivors[i];
+	}
+
+	/**
+	 * Returns the species with the most survivors.
+	 *
+	 * @return its index, or -1 if two or more species share the most.
+	 */
+	public int winner() {
+		return (leaders() == 1) ? indexOfMost() : -1;
+	}
+
+	/**
+	 * Returns the share of the win species i earns: 1 if it has the most
+	 * survivors on its own, 1/t if it ties with t - 1 others for the most, and
+	 * 0 otherwise.
+	 */
+	public double score(int i) {
+		int most = survivors[indexOfMost()];
+		return (survivors[i] == most) ? 1.0 / leaders() : 0.0;
+	}
+
+	/*
+	 * The number of species that share the most survivors.
+	 */
+	private int leaders() {
+		int most = survivors[indexOfMost()];
+		int count = 0;
+		for (int n : survivors) {
+			if (n == most) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private int indexOfMost() {
+		int best = 0;
+		for (int i = 1; i < survivors.length; i++) {
+			if (survivors[i] > survivors[best]) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	public String toString() {
+		return Arrays.toString(survivors);
+	}
+}
@@ -0,0 +1,161 @@
+package darwin;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+
+/**
+ * Mutation and crossover of species programs, for species that evolve.
+ *
+ * Every operator returns a new Species with the parent's name and color and a
+ * valid program: jump addresses are steps of the new program and programs
+ * stay between 1 and MAX_PROGRAM steps long. The new program is a fresh list,
+ * but the Instruction objects it holds are shared with the parents, since
+ * instructions never change. A descendant that is not changed at all should
+ * be made with Species.copy, which shares the whole program and everything
+ * built from it.
+ */
+public final class Mutator {
+
+	/** The longest program mutation or crossover will make. */
+	public static final int MAX_PROGRAM = 64;
+
+	private Mutator() {
+	}
+
+	/**
+	 * Return a species whose program differs from parent's by one random
+	 * change: a step replaced by a random instruction, the address of a step
+	 * changed, a random step inserted, or a step deleted. Addresses are
+	 * adjusted so that jumps into the rest of the program still reach the same
+	 * instructions.
+	 */
+	public static Species mutate(Species parent, SplittableRandom rand) {
+		ArrayList<Instruction> program = programOf(parent);
+		int n = program.size();
+		int i = rand.nextInt(n); // the step changed, from 0
+
+		switch (rand.nextInt(4)) {
+			case 0 :
+				program.set(i, randomInstruction(n, rand));
+				break;
+			case 1 :
+				Instruction old = program.get(i);
+				if (old.getOpcode() == Instruction.INFECT) {
+					program.set(i, new Instruction(Instruction.INFECT, rand.nextInt(n + 1)));
+				} else if (hasAddress(old.getOpcode())) {
+					program.set(i, new Instruction(old.getOpcode(), 1 + rand.nextInt(n)));
+				} else {
+					program.set(i, randomInstruction(n, rand));
+				}
+				break;
+			case 2 :
+				if (n < MAX_PROGRAM) {
+					insert(program, i, randomInstruction(n + 1, rand));
+				} else {
+					program.set(i, randomInstruction(n, rand));
+				}
+				break;
+			case 3 :
+				if (n > 1) {
+					delete(program, i);
+				} else {
+					program.set(i, randomInstruction(n, rand));
+				}
+				break;
+		}
+		return new Species(parent.getName(), parent.getColor(), program);
+	}
+
+	/**
+	 * Return a species whose program is the start of first's followed by the
+	 * end of second's, cut at random points, with the name and color of first.
+	 * Addresses past the end of the new program wrap around to its start.
+	 */
+	public static Species crossover(Species first, Species second, SplittableRandom rand) {
+		int head = 1 + rand.nextInt(first.programSize()); // steps from first
+		int tail = rand.nextInt(second.programSize() + 1); // steps from second
+		if (head + tail > MAX_PROGRAM) {
+			tail = Math.max(0, MAX_PROGRAM - head);
+			head = Math.min(head, MAX_PROGRAM);
+		}
+		ArrayList<Instruction> program = new ArrayList<Instruction>(head + tail);
+		for (int i = 1; i <= head; i++) {
+			program.add(first.programStep(i));
+		}
+		for (int i = second.programSize() - tail + 1; i <= second.programSize(); i++) {
+			program.add(second.programStep(i));
+		}
+
+		int n = program.size();
+		for (int i = 0; i < n; i++) {
+			Instruction step = program.get(i);
+			if (step.getAddress() > n) {
+				program.set(i, new Instruction(step.getOpcode(), (step.getAddress() - 1) % n + 1));
+			}
+		}
+		return new Species(first.getName(), first.getColor(), program);
+	}
+
+	/*
+	 * A new list holding parent's instructions.
+	 */
+	private static ArrayList<Instruction> programOf(Species parent) {
+		ArrayList<Instruction> program = new ArrayList<Instruction>(parent.programSize() + 1);
+		for (int i = 1; i <= parent.programSize(); i++) {
+			program.add(parent.programStep(i));
+		}
+		return program;
+	}
+
+	/*
+	 * A random instruction for a program of n steps.
+	 */
+	private static Instruction randomInstruction(int n, SplittableRandom rand) {
+		int opcode = Instruction.HOP + rand.nextInt(Instruction.IF2ENEMY);
+		if (opcode == Instruction.INFECT) {
+			return new Instruction(opcode, rand.nextInt(n + 1));
+		}
+		return new Instruction(opcode, hasAddress(opcode) ? 1 + rand.nextInt(n) : 0);
+	}
+
+	private static boolean hasAddress(int opcode) {
+		return opcode >= Instruction.IFEMPTY;
+	}
+
+	/*
+	 * Insert step before index i, moving every address at or after it along
+	 * by one. The new step's own address is left as it is.
+	 */
+	private static void insert(ArrayList<Instruction> program, int i, Instruction step) {
+		for (int j = 0; j < program.size(); j++) {
+			Instruction old = program.get(j);
+			if (old.getAddress() > i) {
+				program.set(j, new Instruction(old.getOpcode(), old.getAddress() + 1));
+			}
+		}
+		program.add(i, step);
+	}
+
+	/*
+	 * Delete the step at index i. Addresses after it move back by one, those
+	 * of the step itself go to the step that took its place, wrapping around
+	 * to step 1 past the end.
+	 */
+	private static void delete(ArrayList<Instruction> program, int i) {
+		program.remove(i);
+		int n = program.size();
+		for (int j = 0; j < n; j++) {
+			Instruction old = program.get(j);
+			int address = old.getAddress();
+			if (address > i + 1) {
+				address--;
+			}
+			if (address > n) {
+				address = 1;
+			}
+			if (address != old.getAddress()) {
+				program.set(j, new Instruction(old.getOpcode(), address));
+			}
+		}
+	}
+}
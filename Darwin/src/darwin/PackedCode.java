@@ -0,0 +1,46 @@
+package darwin;
+
+/**
+ * The encoding of the packed programs the engines run. Each instruction is
+ * one int: the opcode sits in the low OPCODE_BITS bits and the address above
+ * it. See Species.code() for how a whole program is laid out.
+ */
+public final class PackedCode {
+
+	/** number of low bits that hold the opcode in a packed instruction */
+	public static final int OPCODE_BITS = 5;
+	/** mask that extracts the opcode from a packed instruction */
+	public static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+
+	private PackedCode() {
+	}
+
+	/**
+	 * Packs an opcode and address into one int. @pre 0 <= opcode <=
+	 * OPCODE_MASK and address >= 0.
+	 */
+	public static int pack(int opcode, int address) {
+		return (address << OPCODE_BITS) | opcode;
+	}
+
+	/**
+	 * Returns instruction packed into one int.
+	 */
+	public static int pack(Instruction instruction) {
+		return pack(instruction.getOpcode(), instruction.getAddress());
+	}
+
+	/**
+	 * Returns the opcode of a packed instruction.
+	 */
+	public static int opcodeOf(int packed) {
+		return packed & OPCODE_MASK;
+	}
+
+	/**
+	 * Returns the address of a packed instruction.
+	 */
+	public static int addressOf(int packed) {
+		return packed >>> OPCODE_BITS;
+	}
+}
@@ -0,0 +1,434 @@
+package darwin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A GridEngine that plays each round on all the threads of a ForkJoinPool.
+ * 
+ * The board is cut into tiles of whole rows. Rounds are simultaneous rather
+ * than one creature after another: every creature decides its action from the
+ * board as it stood at the start of the round, and then all the actions take
+ * effect together. Conflicts are settled by creature index, so the outcome
+ * depends only on the creatures and the seed, never on the number of threads
+ * or the order the tiles happen to run in:
+ * 
+ * <ol>
+ * <li>Each tile runs the programs of its creatures up to their actions.</li>
+ * <li>Infections claim their target; the lowest creature index wins.</li>
+ * <li>Winning infections convert their targets, which start at the
+ * infector's address. Infections all take effect at once, with the species
+ * the infectors had at the start of the round, so an infection made by a
+ * creature that is itself infected in the same round still converts its
+ * target to the infector's old species.</li>
+ * <li>Hops by creatures that were not infected claim the empty square in
+ * front; the lowest creature index wins and the others stay put.</li>
+ * <li>Winning hops move, and turns by creatures that were not infected are
+ * applied. An infected creature's own hop or turn is lost.</li>
+ * <li>The claims are cleared for the next round, and creatures that hopped
+ * into another tile move to that tile's list.</li>
+ * </ol>
+ * 
+ * Because of the simultaneous rules a match played here differs from the same
+ * match in a sequential GridEngine, but it is identical for every pool size.
+ */
+public class ParallelEngine extends GridEngine {
+
+	// rows per tile
+	private static final int TILE_ROWS = 16;
+
+	// what each creature decided in phase 1
+	private static final byte NONE = 0;
+	private static final byte HOP = 1;
+	private static final byte TURN_LEFT = 2;
+	private static final byte TURN_RIGHT = 3;
+	private static final byte INFECT = 4;
+
+	private final ForkJoinPool pool;
+
+	// per creature, filled in phase 1
+	private byte[] action = new byte[0];
+	private short[] nextPc = new short[0];
+	private short[] infectPc = new short[0];
+	private short[] actorSpecies = new short[0];
+	private boolean[] infected = new boolean[0];
+	private int[] target = new int[0];
+
+	// per square of the padded board: the lowest creature index that wants
+	// to infect it or hop onto it this round, or NO_CLAIM
+	private static final int NO_CLAIM = Integer.MAX_VALUE;
+	private final AtomicIntegerArray claim;
+
+	// the creatures standing in each tile, kept up to date as they are added
+	// and as they hop from one tile to another
+	private int[][] tileCreatures;
+	private int[] tileCount;
+
+	// per tile, the creatures that hopped out of it this round, for
+	// giveEachCreatureOneTurn to hand on to the tiles they hopped into
+	private int[][] tileLeaving;
+	private int[] tileLeft;
+
+	// one task per tile and one to run them all, reused for every phase
+	private final ArrayList<PhaseTask> tasks;
+	private final AllTiles allTiles;
+
+	// per tile, what phase 5 changed: the XOR of the old and new state keys
+	// of its creatures, and the creatures each species gained by infection
+	private long[] tileHash;
+	private int[][] tileGain;
+
+	/**
+	 * Create an empty world of width columns and height rows in which the given
+	 * species can live, played on the threads of pool.
+	 * 
+	 * @see GridEngine#GridEngine(int, int, Species[])
+	 */
+	public ParallelEngine(int width, int height, Species[] species, ForkJoinPool pool) {
+		super(width, height, species);
+		this.pool = pool;
+		claim = new AtomicIntegerArray(cellSpecies.length);
+		for (int i = 0; i < cellSpecies.length; i++) {
+			claim.set(i, NO_CLAIM);
+		}
+		int tiles = (height + TILE_ROWS - 1) / TILE_ROWS;
+		tileCreatures = new int[tiles][];
+		tileCount = new int[tiles];
+		tileLeaving = new int[tiles][];
+		tileLeft = new int[tiles];
+		tileHash = new long[tiles];
+		tileGain = new int[tiles][species.length];
+		tasks = new ArrayList<PhaseTask>(tiles);
+		for (int t = 0; t < tiles; t++) {
+			tileCreatures[t] = new int[16];
+			tileLeaving[t] = new int[16];
+			tasks.add(new PhaseTask(t));
+		}
+		allTiles = new AllTiles(tasks);
+	}
+
+	/**
+	 * Put a new creature of species s on the square pos, facing dir, and
+	 * enter it in the list of its tile.
+	 * 
+	 * @see GridEngine#add(int, Position, int)
+	 */
+	public int add(int s, Position pos, int dir) {
+		int c = super.add(s, pos, dir);
+		int tile = tileOf(cellOf[c]);
+		tileCreatures[tile] = append(tileCreatures[tile], tileCount[tile]++, c);
+		return c;
+	}
+
+	/*
+	 * The tile that the square cell of the padded board lies in.
+	 */
+	private int tileOf(int cell) {
+		return (cell / stride - RING) / TILE_ROWS;
+	}
+
+	/*
+	 * Stores c at list[n], in a longer copy of list if it is full, and returns
+	 * the list.
+	 */
+	private static int[] append(int[] list, int n, int c) {
+		if (n == list.length) {
+			list = Arrays.copyOf(list, 2 * n);
+		}
+		list[n] = c;
+		return list;
+	}
+
+	/**
+	 * Gives each creature one turn, simultaneously, using the pool.
+	 */
+	public void giveEachCreatureOneTurn() {
+		if (action.length < count) {
+			int capacity = cellOf.length;
+			action = new byte[capacity];
+			nextPc = new short[capacity];
+			infectPc = new short[capacity];
+			actorSpecies = new short[capacity];
+			infected = new boolean[capacity];
+			target = new int[capacity];
+		}
+
+		for (int phase = 1; phase <= 6; phase++) {
+			for (PhaseTask task : tasks) {
+				task.phase = phase;
+				task.reinitialize();
+			}
+			allTiles.reinitialize();
+			pool.invoke(allTiles);
+		}
+		for (int t = 0; t < tileCount.length; t++) {
+			int[] leaving = tileLeaving[t];
+			for (int i = 0; i < tileLeft[t]; i++) {
+				int c = leaving[i];
+				int to = tileOf(cellOf[c]);
+				tileCreatures[to] = append(tileCreatures[to], tileCount[to]++, c);
+			}
+			tileLeft[t] = 0;
+		}
+		for (int t = 0; t < tileCount.length; t++) {
+			stateHash ^= tileHash[t];
+			tileHash[t] = 0;
+			for (int s = 0; s < populationOf.length; s++) {
+				populationOf[s] += tileGain[t][s];
+				tileGain[t][s] = 0;
+			}
+		}
+		round++;
+	}
+
+	/*
+	 * Runs one phase for every tile and waits for all of them.
+	 */
+	private static class AllTiles extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ArrayList<PhaseTask> tasks;
+
+		AllTiles(ArrayList<PhaseTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+
+	/*
+	 * One phase of the round over one tile. The task is reinitialized and
+	 * given the next phase each time it is run again.
+	 */
+	private class PhaseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int tile;
+		int phase;
+
+		PhaseTask(int tile) {
+			this.tile = tile;
+		}
+
+		protected void compute() {
+			switch (phase) {
+				case 1 :
+					decideTile(tile);
+					break;
+				case 2 :
+					claimInfections(tile);
+					break;
+				case 3 :
+					applyInfections(tile);
+					break;
+				case 4 :
+					claimHops(tile);
+					break;
+				case 5 :
+					applyMoves(tile);
+					break;
+				case 6 :
+					clearClaims(tile);
+					dropLeavers(tile);
+					break;
+			}
+		}
+	}
+
+	/*
+	 * Phase 1: run the programs of the tile's creatures against the unchanged
+	 * board. Only per-creature arrays are written.
+	 */
+	private void decideTile(int tile) {
+		int[] list = tileCreatures[tile];
+		for (int i = 0; i < tileCount[tile]; i++) {
+			int c = list[i];
+			int cell = cellOf[c];
+			int s = cellSpecies[cell];
+			actorSpecies[c] = (short) s;
+			infected[c] = false;
+			target[c] = EMPTY;
+			int at = next(c, cell, s, dirOf[c], pcOf[c]);
+			if (at < 0) {
+				action[c] = NONE;
+				nextPc[c] = (short) -at;
+				continue;
+			}
+			int instruction = code[s][at];
+			nextPc[c] = (short) (at + 1);
+			switch (instruction & PackedCode.OPCODE_MASK) {
+				case Instruction.HOP :
+					action[c] = HOP;
+					break;
+				case Instruction.LEFT :
+					action[c] = TURN_LEFT;
+					break;
+				case Instruction.RIGHT :
+					action[c] = TURN_RIGHT;
+					break;
+				case Instruction.INFECT :
+					action[c] = INFECT;
+					infectPc[c] = (short) infectStart(instruction);
+					break;
+			}
+		}
+	}
+
+	/*
+	 * Phase 2: infections of an enemy claim the target square.
+	 */
+	private void claimInfections(int tile) {
+		int[] list = tileCreatures[tile];
+		for (int i = 0; i < tileCount[tile]; i++) {
+			int c = list[i];
+			if (action[c] == INFECT) {
+				int front = cellOf[c] + offset[dirOf[c]];
+				int ahead = cellSpecies[front];
+				if (ahead >= 0 && ahead != actorSpecies[c]) {
+					target[c] = front;
+					claimSquare(front, c);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Phase 3: the winner of each infected square converts the creature on it,
+	 * whether or not the winner is converted too. Winners have distinct
+	 * targets, so no two threads write the same square.
+	 */
+	private void applyInfections(int tile) {
+		int[] list = tileCreatures[tile];
+		for (int i = 0; i < tileCount[tile]; i++) {
+			int c = list[i];
+			int front = target[c];
+			if (action[c] == INFECT && front != EMPTY) {
+				if (claim.get(front) == c) {
+					int victim = occupant[front];
+					cellSpecies[front] = actorSpecies[c];
+					infected[victim] = true;
+					nextPc[victim] = infectPc[c];
+				}
+			}
+		}
+	}
+
+	/*
+	 * Phase 4: hops of creatures that were not infected claim the empty square
+	 * in front. Squares that were empty at the start of the round were never
+	 * claimed by an infection.
+	 */
+	private void claimHops(int tile) {
+		int[] list = tileCreatures[tile];
+		for (int i = 0; i < tileCount[tile]; i++) {
+			int c = list[i];
+			if (action[c] == HOP && !infected[c]) {
+				int front = cellOf[c] + offset[dirOf[c]];
+				if (cellSpecies[front] == EMPTY) {
+					target[c] = front;
+					claimSquare(front, c);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Phase 5: winning hops move, turns turn and everyone moves on to the next
+	 * step. Every square written is either the creature's own or a square it
+	 * alone won. The tile's changes to the populations and the state hash are
+	 * added up for giveEachCreatureOneTurn to apply.
+	 */
+	private void applyMoves(int tile) {
+		int[] list = tileCreatures[tile];
+		int[] gain = tileGain[tile];
+		long hash = 0;
+		for (int i = 0; i < tileCount[tile]; i++) {
+			int c = list[i];
+			int cell = cellOf[c];
+			int dir = dirOf[c];
+			int front = target[c];
+			if (hashing) {
+				hash ^= stateKey(c, cell, actorSpecies[c], dir, pcOf[c]);
+			}
+			pcOf[c] = nextPc[c];
+			if (infected[c]) {
+				gain[actorSpecies[c]]--;
+				gain[cellSpecies[cell]]++;
+				if (hashing) {
+					hash ^= stateKey(c, cell, cellSpecies[cell], dir, pcOf[c]);
+				}
+				continue;
+			}
+			switch (action[c]) {
+				case HOP :
+					if (front != EMPTY && claim.get(front) == c) {
+						cellSpecies[front] = cellSpecies[cell];
+						occupant[front] = c;
+						cellSpecies[cell] = EMPTY;
+						occupant[cell] = EMPTY;
+						cellOf[c] = front;
+					}
+					break;
+				case TURN_LEFT :
+					dirOf[c] = (byte) Creature.leftFrom(dir);
+					break;
+				case TURN_RIGHT :
+					dirOf[c] = (byte) Creature.rightFrom(dir);
+					break;
+			}
+			if (hashing) {
+				hash ^= stateKey(c, cellOf[c], actorSpecies[c], dirOf[c], pcOf[c]);
+			}
+		}
+		tileHash[tile] = hash;
+	}
+
+	/*
+	 * Phase 6: reset every square claimed this round. Nothing reads the claims
+	 * in this phase, so tiles may clear the same square at once.
+	 */
+	private void clearClaims(int tile) {
+		int[] list = tileCreatures[tile];
+		for (int i = 0; i < tileCount[tile]; i++) {
+			int c = list[i];
+			if (target[c] != EMPTY) {
+				claim.set(target[c], NO_CLAIM);
+			}
+		}
+	}
+
+	/*
+	 * Also phase 6: take the creatures that hopped out of the tile off its
+	 * list and set them aside for the tiles they hopped into. Only the tile's
+	 * own lists are written.
+	 */
+	private void dropLeavers(int tile) {
+		int[] list = tileCreatures[tile];
+		int kept = 0;
+		for (int i = 0; i < tileCount[tile]; i++) {
+			int c = list[i];
+			if (action[c] == HOP && tileOf(cellOf[c]) != tile) {
+				tileLeaving[tile] = append(tileLeaving[tile], tileLeft[tile]++, c);
+			} else {
+				list[kept++] = c;
+			}
+		}
+		tileCount[tile] = kept;
+	}
+
+	/*
+	 * Lowers the claim on square to c if c is lower than the current claim.
+	 */
+	private void claimSquare(int square, int c) {
+		int current = claim.get(square);
+		while (c < current) {
+			if (claim.compareAndSet(square, current, c)) {
+				return;
+			}
+			current = claim.get(square);
+		}
+	}
+}
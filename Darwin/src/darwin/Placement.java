@@ -0,0 +1,52 @@
+package darwin;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+/**
+ * Chooses distinct random squares for the creatures at the start of a
+ * simulation. Retrying random squares until a free one turns up slows down
+ * badly as the world fills; this takes time proportional to the number of
+ * squares chosen, however full the world ends up.
+ */
+public final class Placement {
+
+	private Placement() {
+	}
+
+	/**
+	 * Returns count distinct square numbers in [0, cells), in random order.
+	 * Every set of squares is equally likely.
+	 * 
+	 * @throws IllegalArgumentException if count is negative or more than cells
+	 */
+	public static int[] sample(int cells, int count, SplittableRandom rand) {
+		if (count < 0 || count > cells) {
+			throw new IllegalArgumentException("cannot place " + count + " creatures on " + cells + " squares.");
+		}
+
+		// Floyd's algorithm: one random draw per square chosen, with a bit set
+		// to remember the squares already taken
+		BitSet taken = new BitSet(cells);
+		int[] chosen = new int[count];
+		int n = 0;
+		for (int j = cells - count; j < cells; j++) {
+			int t = rand.nextInt(j + 1);
+			if (taken.get(t)) {
+				t = j;
+			}
+			taken.set(t);
+			chosen[n++] = t;
+		}
+
+		// Floyd's algorithm picks a uniform set but not a uniform order, and the
+		// order decides which species goes where
+		for (int i = count - 1; i > 0; i--) {
+			int k = rand.nextInt(i + 1);
+			int tmp = chosen[i];
+			chosen[i] = chosen[k];
+			chosen[k] = tmp;
+		}
+		return chosen;
+	}
+}
@@ -18,7 +18,7 @@ public class Position {
 	/** The West compass point. */
 	public static final int WEST = 3;
 
-	private int x, y;
+	private final int x, y;
 
 	/**
 	 * Create a new position for the given x and y coordinates.
@@ -0,0 +1,275 @@
+package darwin;
+
+/**
+ * What can be known about a species program before any creature runs it.
+ *
+ * analyze checks that every instruction is valid and every address is a step
+ * of the program, then looks at how control flows between the steps. Within
+ * one turn a creature senses the same things at every test, so for each of
+ * the seven situations it can be in (wall, empty, same or enemy in front, and
+ * whether an enemy is two squares ahead when there is no wall) the tests
+ * other than ifrandom always go the same way. Following those paths from
+ * every step a creature can be at gives
+ * <ul>
+ * <li>the most instructions a creature may execute before it reaches an
+ * action, so that any larger instruction budget never cuts a turn short,
+ * and</li>
+ * <li>the cycles a creature may go round without ever acting. A cycle left
+ * only through an ifrandom is reported too, since no budget is large enough
+ * for it every time.</li>
+ * </ul>
+ */
+public final class ProgramAnalysis {
+
+	/** maxStepsToAction() of a program with an action-free cycle. */
+	public static final int UNBOUNDED = -1;
+
+	// the valid sensor values, see TransitionTable; a wall in front hides
+	// the square two ahead
+	private static final int[] SITUATIONS = {
+			TransitionTable.SENSE_WALL, TransitionTable.SENSE_EMPTY, TransitionTable.SENSE_SAME,
+			TransitionTable.SENSE_ENEMY, TransitionTable.SENSE_EMPTY + TransitionTable.SENSE_ENEMY2,
+			TransitionTable.SENSE_SAME + TransitionTable.SENSE_ENEMY2,
+			TransitionTable.SENSE_ENEMY + TransitionTable.SENSE_ENEMY2};
+
+	// dist[] value of a step that can go round an action-free cycle
+	private static final int ENDLESS = Integer.MAX_VALUE;
+
+	private final int maxStepsToAction;
+	private final int[] actionFreeCycle;
+
+	private ProgramAnalysis(int maxStepsToAction, int[] actionFreeCycle) {
+		this.maxStepsToAction = maxStepsToAction;
+		this.actionFreeCycle = actionFreeCycle;
+	}
+
+	/**
+	 * Return the most instructions a creature can execute in one turn before
+	 * it reaches an action, not counting the action. Running past the end of
+	 * the program counts as the "go 1" it is run as. The optimized code a
+	 * Species runs never executes more.
+	 *
+	 * @return the number of instructions, or UNBOUNDED if the program has an
+	 *         action-free cycle.
+	 */
+	public int maxStepsToAction() {
+		return maxStepsToAction;
+	}
+
+	/**
+	 * Return the steps of a cycle a creature can go round without acting, in
+	 * the order it runs them.
+	 *
+	 * @return the steps, or null if there is no such cycle.
+	 */
+	public int[] actionFreeCycle() {
+		return (actionFreeCycle == null) ? null : actionFreeCycle.clone();
+	}
+
+	/**
+	 * Analyze a packed program, as made by Species before it is optimized:
+	 * slot i holds instruction i, slot 0 is unused and the last slot holds
+	 * "go 1".
+	 *
+	 * @throws IllegalArgumentException if the program is empty, an opcode is
+	 *         not a Darwin instruction, or an address is not a step of the
+	 *         program
+	 */
+	public static ProgramAnalysis analyze(int[] code) {
+		int n = code.length - 2;
+		if (n < 1) {
+			throw new IllegalArgumentException("the program is empty.");
+		}
+		for (int i = 1; i <= n; i++) {
+			int op = PackedCode.opcodeOf(code[i]);
+			int address = PackedCode.addressOf(code[i]);
+			if (op < Instruction.HOP || op > Instruction.IF2ENEMY) {
+				throw new IllegalArgumentException("step " + i + ": invalid instruction " + op + ".");
+			}
+			if (op >= Instruction.IFEMPTY && (address < 1 || address > n)) {
+				throw new IllegalArgumentException(
+						"step " + i + ": address " + address + " is not a step of the program.");
+			}
+			if (op == Instruction.INFECT && address > n) {
+				throw new IllegalArgumentException(
+						"step " + i + ": infect address " + address + " is not a step of the program.");
+			}
+		}
+
+		boolean[] reachable = reachable(code);
+		int max = 0;
+		int[] cycle = null;
+		int[] dist = new int[code.length];
+		for (int sensor : SITUATIONS) {
+			int[] found = longestPaths(code, sensor, reachable, dist);
+			if (cycle == null) {
+				cycle = found;
+			}
+			for (int pc = 1; pc < code.length; pc++) {
+				if (reachable[pc] && dist[pc] > max) {
+					max = dist[pc];
+				}
+			}
+		}
+		return new ProgramAnalysis((cycle != null) ? UNBOUNDED : max, cycle);
+	}
+
+	/*
+	 * Marks the steps a creature can ever be at: step 1, the steps infected
+	 * creatures start at, and anything they lead to.
+	 */
+	private static boolean[] reachable(int[] code) {
+		boolean[] reached = new boolean[code.length];
+		int[] pending = new int[code.length];
+		int top = 0;
+		pending[top++] = 1;
+		reached[1] = true;
+		while (top > 0) {
+			int pc = pending[--top];
+			int op = PackedCode.opcodeOf(code[pc]);
+			int address = PackedCode.addressOf(code[pc]);
+			for (int k = 0; k < 2; k++) {
+				int next;
+				if (k == 0) {
+					next = (op == Instruction.GO) ? address : pc + 1;
+				} else if (op == Instruction.INFECT) {
+					next = (address == 0) ? 1 : address;
+				} else if (op >= Instruction.IFEMPTY && op != Instruction.GO) {
+					next = address;
+				} else {
+					continue;
+				}
+				if (!reached[next]) {
+					reached[next] = true;
+					pending[top++] = next;
+				}
+			}
+		}
+		return reached;
+	}
+
+	/*
+	 * Returns where a test or go at pc leads for the given sensor value:
+	 * its address, pc + 1, or -1 when an ifrandom can go either way.
+	 */
+	private static int follow(int[] code, int pc, int sensor) {
+		int front = sensor & 3;
+		int address = PackedCode.addressOf(code[pc]);
+		boolean taken;
+		switch (PackedCode.opcodeOf(code[pc])) {
+			case Instruction.IFEMPTY :
+				taken = front == TransitionTable.SENSE_EMPTY;
+				break;
+			case Instruction.IFWALL :
+				taken = front == TransitionTable.SENSE_WALL;
+				break;
+			case Instruction.IFSAME :
+				taken = front == TransitionTable.SENSE_SAME;
+				break;
+			case Instruction.IFENEMY :
+				taken = front == TransitionTable.SENSE_ENEMY;
+				break;
+			case Instruction.IF2ENEMY :
+				taken = (sensor & TransitionTable.SENSE_ENEMY2) != 0;
+				break;
+			case Instruction.GO :
+				taken = true;
+				break;
+			default :
+				return -1;
+		}
+		return taken ? address : pc + 1;
+	}
+
+	/*
+	 * Fills dist[pc] with the most instructions executed from pc before an
+	 * action when the creature senses sensor, ENDLESS if it may never act, or
+	 * 0 for actions. Returns one action-free cycle, or null if there is none.
+	 */
+	private static int[] longestPaths(int[] code, int sensor, boolean[] reachable, int[] dist) {
+		int end = code.length - 1; // the "go 1" past the last instruction
+		byte[] state = new byte[code.length]; // 0 new, 1 being searched, 2 done
+		int[] stack = new int[code.length];
+		int[] child = new int[code.length]; // successors of stack[i] searched
+		int[] depth = new int[code.length]; // where a step being searched is
+		int[] cycle = null;
+
+		for (int start = 1; start < code.length; start++) {
+			if (!reachable[start] || state[start] != 0) {
+				continue;
+			}
+			int top = 0;
+			stack[top] = start;
+			child[top] = 0;
+			depth[start] = top;
+			state[start] = 1;
+			top++;
+
+			while (top > 0) {
+				int pc = stack[top - 1];
+				int op = PackedCode.opcodeOf(code[pc]);
+				if (op <= Instruction.INFECT) {
+					dist[pc] = 0;
+					state[pc] = 2;
+					top--;
+					continue;
+				}
+
+				int target = follow(code, pc, sensor);
+				int successors = (target < 0) ? 2 : 1;
+				if (child[top - 1] < successors) {
+					int next;
+					if (target >= 0) {
+						next = target;
+					} else {
+						next = (child[top - 1] == 0) ? PackedCode.addressOf(code[pc]) : pc + 1;
+					}
+					child[top - 1]++;
+					if (state[next] == 0) {
+						stack[top] = next;
+						child[top] = 0;
+						depth[next] = top;
+						state[next] = 1;
+						top++;
+					} else if (state[next] == 1 && cycle == null) {
+						cycle = cycleOf(stack, depth[next], top, end);
+					}
+					continue;
+				}
+
+				// every successor is done or on the stack
+				int longest = 0;
+				for (int k = 0; k < successors; k++) {
+					int next = (target >= 0) ? target : (k == 0) ? PackedCode.addressOf(code[pc]) : pc + 1;
+					int d = (state[next] == 1) ? ENDLESS : dist[next];
+					longest = Math.max(longest, d);
+				}
+				dist[pc] = (longest == ENDLESS) ? ENDLESS : longest + 1;
+				state[pc] = 2;
+				top--;
+			}
+		}
+		return cycle;
+	}
+
+	/*
+	 * Returns the steps stack[from] .. stack[to - 1], leaving out the slot
+	 * past the end of the program.
+	 */
+	private static int[] cycleOf(int[] stack, int from, int to, int end) {
+		int length = 0;
+		for (int i = from; i < to; i++) {
+			if (stack[i] != end) {
+				length++;
+			}
+		}
+		int[] steps = new int[length];
+		int k = 0;
+		for (int i = from; i < to; i++) {
+			if (stack[i] != end) {
+				steps[k++] = stack[i];
+			}
+		}
+		return steps;
+	}
+}
@@ -0,0 +1,400 @@
+package darwin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Turns a packed species program into a hidden class implementing
+ * CompiledProgram. The generated run method is a tableswitch on the starting
+ * step into straight-line code for each instruction: tests branch directly to
+ * their target, go is a goto, and actions return their step. The instruction
+ * budget is checked at every step, exactly as GridEngine.decide counts it.
+ * 
+ * The class file is written by hand, in the version 49 format so that no stack
+ * map frames are needed, and defined with Lookup.defineHiddenClass so it can
+ * be unloaded with its Species.
+ */
+public final class ProgramCompiler {
+
+	// constant pool indices, see classFile()
+	private static final int THIS_CLASS = 2;
+	private static final int OBJECT_CLASS = 4;
+	private static final int INTERFACE_CLASS = 6;
+	private static final int INIT_NAME = 7;
+	private static final int VOID_DESCRIPTOR = 8;
+	private static final int OBJECT_INIT = 10;
+	private static final int RUN_NAME = 11;
+	private static final int RUN_DESCRIPTOR = 12;
+	private static final int CODE = 13;
+	private static final int NEXT_BITS = 19;
+	private static final int MINUS_OUT_OF_BUDGET = 20;
+	private static final int CONSTANT_COUNT = 21;
+
+	// local variables of run(int pc, int sensor, long bits, int budget)
+	private static final int PC = 1;
+	private static final int SENSOR = 2;
+	private static final int BITS = 3;
+	private static final int BUDGET = 5;
+	private static final int WORD = 6;
+	private static final int BITS_LEFT = 8;
+	private static final int EXECUTED = 9;
+	private static final int FRONT = 10;
+	private static final int ENEMY2 = 11;
+	private static final int BIT = 12;
+	private static final int MAX_LOCALS = 13;
+	private static final int MAX_STACK = 6;
+
+	// the JVM opcodes used
+	private static final int ICONST_0 = 0x03, ICONST_1 = 0x04, ICONST_2 = 0x05, ICONST_3 = 0x06, ICONST_4 = 0x07;
+	private static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+	private static final int ILOAD = 0x15, LLOAD = 0x16, ALOAD_0 = 0x2a, ISTORE = 0x36, LSTORE = 0x37;
+	private static final int IADD = 0x60, INEG = 0x74, LUSHR = 0x7d, IAND = 0x7e, IINC = 0x84, L2I = 0x88;
+	private static final int IFEQ = 0x99, IFNE = 0x9a, IF_ICMPEQ = 0x9f, IF_ICMPGE = 0xa2, GOTO = 0xa7;
+	private static final int TABLESWITCH = 0xaa, IRETURN = 0xac, RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+	private ProgramCompiler() {
+	}
+
+	/**
+	 * Compile a packed program as returned by Species.code().
+	 * 
+	 * @return the compiled program, or null if the program has a jump outside
+	 *         itself or is too long for the generated method.
+	 */
+	public static CompiledProgram compile(int[] code) {
+		byte[] method = runMethod(code);
+		if (method == null) {
+			return null;
+		}
+		try {
+			Class<?> c = MethodHandles.lookup().defineHiddenClass(classFile(method), true).lookupClass();
+			return (CompiledProgram) c.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("could not define compiled program", e);
+		}
+	}
+
+	/*
+	 * Generate the bytecode of run, or null if the program cannot be compiled.
+	 */
+	private static byte[] runMethod(int[] code) {
+		int n = code.length - 1;
+		for (int i = 1; i <= n; i++) {
+			int op = PackedCode.opcodeOf(code[i]);
+			int address = PackedCode.addressOf(code[i]);
+			if (op >= Instruction.IFEMPTY && op <= ProgramOptimizer.IFEMPTY_HOP && (address < 1 || address > n)) {
+				return null;
+			}
+		}
+
+		Assembler a = new Assembler(n + 2);
+		int bad = n + 1; // label for a starting step outside the program
+
+		a.op(ILOAD, SENSOR).op(ICONST_3).op(IAND).op(ISTORE, FRONT);
+		a.op(ILOAD, SENSOR).op(ICONST_4).op(IAND).op(ISTORE, ENEMY2);
+		a.op(LLOAD, BITS).op(LSTORE, WORD);
+		a.op(BIPUSH, 64).op(ISTORE, BITS_LEFT);
+		a.op(ICONST_0).op(ISTORE, EXECUTED);
+		a.op(ILOAD, PC).tableswitch(bad, 1, n);
+
+		a.label(bad);
+		a.op(ILOAD, PC).op(INEG).op(IRETURN);
+
+		for (int i = 1; i <= n; i++) {
+			// a superinstruction compiles like its test: the jump to the
+			// action is a direct branch already
+			int op = ProgramOptimizer.unfused(PackedCode.opcodeOf(code[i]));
+			int address = PackedCode.addressOf(code[i]);
+			int outOfBudget = a.newLabel();
+
+			a.label(i);
+			a.op(ILOAD, EXECUTED).op(ILOAD, BUDGET).jump(IF_ICMPGE, outOfBudget);
+
+			switch (op) {
+				case Instruction.HOP :
+				case Instruction.LEFT :
+				case Instruction.RIGHT :
+				case Instruction.INFECT :
+					a.pushInt(i).op(IRETURN);
+					break;
+				case Instruction.GO :
+					a.iinc(EXECUTED, 1).jump(GOTO, address);
+					break;
+				case Instruction.IFEMPTY :
+					a.iinc(EXECUTED, 1).op(ILOAD, FRONT).op(ICONST_1).jump(IF_ICMPEQ, address).jump(GOTO, i + 1);
+					break;
+				case Instruction.IFWALL :
+					a.iinc(EXECUTED, 1).op(ILOAD, FRONT).jump(IFEQ, address).jump(GOTO, i + 1);
+					break;
+				case Instruction.IFSAME :
+					a.iinc(EXECUTED, 1).op(ILOAD, FRONT).op(ICONST_2).jump(IF_ICMPEQ, address).jump(GOTO, i + 1);
+					break;
+				case Instruction.IFENEMY :
+					a.iinc(EXECUTED, 1).op(ILOAD, FRONT).op(ICONST_3).jump(IF_ICMPEQ, address).jump(GOTO, i + 1);
+					break;
+				case Instruction.IF2ENEMY :
+					a.iinc(EXECUTED, 1).op(ILOAD, ENEMY2).jump(IFNE, address).jump(GOTO, i + 1);
+					break;
+				case Instruction.IFRANDOM :
+					// draw the next 64 bits once the last ones are used up
+					int haveBits = a.newLabel();
+					a.iinc(EXECUTED, 1).op(ILOAD, BITS_LEFT).jump(IFNE, haveBits);
+					a.op(LLOAD, WORD).invokestatic(NEXT_BITS).op(LSTORE, WORD);
+					a.op(LLOAD, WORD).op(LSTORE, BITS).op(BIPUSH, 64).op(ISTORE, BITS_LEFT);
+					a.label(haveBits);
+					a.iinc(BITS_LEFT, -1);
+					a.op(LLOAD, BITS).op(L2I).op(ICONST_1).op(IAND).op(ISTORE, BIT);
+					a.op(LLOAD, BITS).op(ICONST_1).op(LUSHR).op(LSTORE, BITS);
+					a.op(ILOAD, BIT).jump(IFNE, address).jump(GOTO, i + 1);
+					break;
+				default :
+					// not a valid instruction, the creature stays stuck on it
+					a.pushInt(i).op(INEG).op(IRETURN);
+					break;
+			}
+
+			a.label(outOfBudget);
+			a.pushInt(i).op(INEG).ldc(MINUS_OUT_OF_BUDGET).op(IADD).op(IRETURN);
+		}
+		return a.finish();
+	}
+
+	/*
+	 * Wrap the code of run into a class file for a final class implementing
+	 * CompiledProgram with a public no-argument constructor.
+	 */
+	private static byte[] classFile(byte[] runCode) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0); // minor version
+			out.writeShort(49); // major version: Java 5, no stack maps
+
+			out.writeShort(CONSTANT_COUNT);
+			utf8(out, "darwin/GeneratedProgram"); // 1
+			classRef(out, 1); // 2 THIS_CLASS
+			utf8(out, "java/lang/Object"); // 3
+			classRef(out, 3); // 4 OBJECT_CLASS
+			utf8(out, "darwin/CompiledProgram"); // 5
+			classRef(out, 5); // 6 INTERFACE_CLASS
+			utf8(out, "<init>"); // 7 INIT_NAME
+			utf8(out, "()V"); // 8 VOID_DESCRIPTOR
+			nameAndType(out, INIT_NAME, VOID_DESCRIPTOR); // 9
+			methodRef(out, OBJECT_CLASS, 9); // 10 OBJECT_INIT
+			utf8(out, "run"); // 11 RUN_NAME
+			utf8(out, "(IIJI)I"); // 12 RUN_DESCRIPTOR
+			utf8(out, "Code"); // 13 CODE
+			utf8(out, "darwin/RandomBits"); // 14
+			classRef(out, 14); // 15
+			utf8(out, "next"); // 16
+			utf8(out, "(J)J"); // 17
+			nameAndType(out, 16, 17); // 18
+			methodRef(out, 15, 18); // 19 NEXT_BITS
+			out.writeByte(3); // 20 MINUS_OUT_OF_BUDGET
+			out.writeInt(-CompiledProgram.OUT_OF_BUDGET);
+
+			out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+			out.writeShort(THIS_CLASS);
+			out.writeShort(OBJECT_CLASS);
+			out.writeShort(1);
+			out.writeShort(INTERFACE_CLASS);
+			out.writeShort(0); // no fields
+
+			out.writeShort(2);
+			byte[] initCode = {
+				(byte) ALOAD_0,
+				(byte) INVOKESPECIAL, (byte) (OBJECT_INIT >> 8), (byte) OBJECT_INIT,
+				(byte) RETURN };
+			method(out, INIT_NAME, VOID_DESCRIPTOR, 1, 1, initCode);
+			method(out, RUN_NAME, RUN_DESCRIPTOR, MAX_STACK, MAX_LOCALS, runCode);
+
+			out.writeShort(0); // no class attributes
+		} catch (IOException e) {
+			// writing to memory cannot fail
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void utf8(DataOutputStream out, String s) throws IOException {
+		out.writeByte(1);
+		out.writeUTF(s);
+	}
+
+	private static void classRef(DataOutputStream out, int name) throws IOException {
+		out.writeByte(7);
+		out.writeShort(name);
+	}
+
+	private static void nameAndType(DataOutputStream out, int name, int descriptor) throws IOException {
+		out.writeByte(12);
+		out.writeShort(name);
+		out.writeShort(descriptor);
+	}
+
+	private static void methodRef(DataOutputStream out, int owner, int nameAndType) throws IOException {
+		out.writeByte(10);
+		out.writeShort(owner);
+		out.writeShort(nameAndType);
+	}
+
+	private static void method(DataOutputStream out, int name, int descriptor, int maxStack, int maxLocals,
+			byte[] code) throws IOException {
+		out.writeShort(0x0001); // public
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1);
+		out.writeShort(CODE);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0); // no exception table
+		out.writeShort(0); // no code attributes
+	}
+
+	/*
+	 * Collects bytecode with forward and backward jumps to numbered labels,
+	 * and patches the jump offsets in finish().
+	 */
+	private static class Assembler {
+		private byte[] code = new byte[256];
+		private int length;
+
+		private int[] labels;
+		private int labelCount;
+
+		// each jump: where the offset goes, the address of its opcode, the
+		// label, and whether the offset is four bytes wide
+		private ArrayList<int[]> jumps = new ArrayList<int[]>();
+
+		Assembler(int fixedLabels) {
+			labels = new int[fixedLabels];
+			Arrays.fill(labels, -1);
+			labelCount = fixedLabels;
+		}
+
+		int newLabel() {
+			if (labelCount == labels.length) {
+				labels = Arrays.copyOf(labels, 2 * labels.length);
+				Arrays.fill(labels, labelCount, labels.length, -1);
+			}
+			return labelCount++;
+		}
+
+		void label(int label) {
+			labels[label] = length;
+		}
+
+		Assembler op(int opcode) {
+			put(opcode);
+			return this;
+		}
+
+		Assembler op(int opcode, int operand) {
+			put(opcode);
+			put(operand);
+			return this;
+		}
+
+		Assembler iinc(int local, int delta) {
+			put(IINC);
+			put(local);
+			put(delta);
+			return this;
+		}
+
+		Assembler pushInt(int value) {
+			put(SIPUSH);
+			put(value >> 8);
+			put(value);
+			return this;
+		}
+
+		Assembler ldc(int constant) {
+			put(LDC_W);
+			put(constant >> 8);
+			put(constant);
+			return this;
+		}
+
+		Assembler invokestatic(int method) {
+			put(INVOKESTATIC);
+			put(method >> 8);
+			put(method);
+			return this;
+		}
+
+		Assembler jump(int opcode, int label) {
+			int at = length;
+			put(opcode);
+			jumps.add(new int[] { length, at, label, 0 });
+			put(0);
+			put(0);
+			return this;
+		}
+
+		void tableswitch(int defaultLabel, int low, int high) {
+			int at = length;
+			put(TABLESWITCH);
+			while (length % 4 != 0) {
+				put(0);
+			}
+			wideJump(at, defaultLabel);
+			putInt(low);
+			putInt(high);
+			for (int label = low; label <= high; label++) {
+				wideJump(at, label);
+			}
+		}
+
+		/*
+		 * Returns the finished code, or null if a jump is too far for a
+		 * two-byte offset.
+		 */
+		byte[] finish() {
+			for (int[] jump : jumps) {
+				int offset = labels[jump[2]] - jump[1];
+				if (jump[3] != 0) {
+					code[jump[0]] = (byte) (offset >> 24);
+					code[jump[0] + 1] = (byte) (offset >> 16);
+					code[jump[0] + 2] = (byte) (offset >> 8);
+					code[jump[0] + 3] = (byte) offset;
+				} else {
+					if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+						return null;
+					}
+					code[jump[0]] = (byte) (offset >> 8);
+					code[jump[0] + 1] = (byte) offset;
+				}
+			}
+			return (length > 0xFFFF) ? null : Arrays.copyOf(code, length);
+		}
+
+		private void wideJump(int at, int label) {
+			jumps.add(new int[] { length, at, label, 1 });
+			putInt(0);
+		}
+
+		private void putInt(int value) {
+			put(value >> 24);
+			put(value >> 16);
+			put(value >> 8);
+			put(value);
+		}
+
+		private void put(int b) {
+			if (length == code.length) {
+				code = Arrays.copyOf(code, 2 * length);
+			}
+			code[length++] = (byte) b;
+		}
+	}
+}
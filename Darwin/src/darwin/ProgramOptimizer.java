@@ -0,0 +1,209 @@
+package darwin;
+
+/**
+ * Peephole optimizer for packed species programs, run once when a Species is
+ * loaded. It rewrites the code every engine executes, never the program that
+ * programStep and programToString show.
+ *
+ * Three passes are made:
+ * <ul>
+ * <li>jumps are threaded: a test or go whose target is a go jumps straight to
+ * where the chain of gos ends;</li>
+ * <li>instructions that cannot be reached from step 1, following jumps and
+ * the addresses of infects, are removed and the remaining ones renumbered;</li>
+ * <li>an ifenemy whose target is an infect becomes IFENEMY_INFECT, and an
+ * ifempty whose target is a hop becomes IFEMPTY_HOP. The interpreter returns
+ * the action directly when such a test is taken instead of dispatching on it
+ * again.</li>
+ * </ul>
+ *
+ * Creatures act exactly as they would running the original program, except
+ * that the instruction budget counts the steps of the optimized program: a go
+ * that has been threaded away no longer costs a step, so a creature that uses
+ * up its budget without acting may stop, and resume, at a different step.
+ */
+public final class ProgramOptimizer {
+
+	// superinstructions, after the opcodes of Instruction; they only appear
+	// in optimized code, never in a program read from a file
+	/** opcode for an ifenemy whose target is an infect */
+	static final int IFENEMY_INFECT = 12;
+	/** opcode for an ifempty whose target is a hop */
+	static final int IFEMPTY_HOP = 13;
+
+	private ProgramOptimizer() {
+	}
+
+	/**
+	 * Optimize a packed program in the form described at Species.code(). The
+	 * result has the same form and the argument is not modified.
+	 *
+	 * @return the optimized program.
+	 */
+	public static int[] optimize(int[] code) {
+		int[] out = code.clone();
+		threadJumps(out);
+		out = removeUnreachable(out);
+		fuse(out);
+		return out;
+	}
+
+	/**
+	 * Returns the opcode a superinstruction tests like: IFENEMY for
+	 * IFENEMY_INFECT, IFEMPTY for IFEMPTY_HOP, and the opcode itself for
+	 * anything else.
+	 */
+	public static int unfused(int opcode) {
+		switch (opcode) {
+			case IFENEMY_INFECT :
+				return Instruction.IFENEMY;
+			case IFEMPTY_HOP :
+				return Instruction.IFEMPTY;
+			default :
+				return opcode;
+		}
+	}
+
+	/*
+	 * Whether instructions with this opcode jump to their address.
+	 */
+	private static boolean jumps(int opcode) {
+		return opcode >= Instruction.IFEMPTY && opcode <= IFEMPTY_HOP;
+	}
+
+	/*
+	 * Whether instructions with this opcode end the turn.
+	 */
+	private static boolean acts(int opcode) {
+		return opcode >= Instruction.HOP && opcode <= Instruction.INFECT;
+	}
+
+	/*
+	 * Whether address is a step of the program, counting the "go 1" slot.
+	 */
+	private static boolean inProgram(int[] code, int address) {
+		return address >= 1 && address < code.length;
+	}
+
+	/*
+	 * Points every jump at the end of the chain of gos it lands on. A chain
+	 * that goes round in circles is left alone, since it never acts.
+	 */
+	private static void threadJumps(int[] code) {
+		for (int i = 1; i < code.length; i++) {
+			int op = PackedCode.opcodeOf(code[i]);
+			if (!jumps(op)) {
+				continue;
+			}
+			int target = PackedCode.addressOf(code[i]);
+			int end = target;
+			int hops = 0;
+			while (inProgram(code, end) && PackedCode.opcodeOf(code[end]) == Instruction.GO && hops < code.length) {
+				end = PackedCode.addressOf(code[end]);
+				hops++;
+			}
+			if (hops < code.length && end != target) {
+				code[i] = PackedCode.pack(op, end);
+			}
+		}
+	}
+
+	/*
+	 * Drops the instructions no creature can reach and renumbers the rest.
+	 * Whenever an instruction falls through to the next step that step is
+	 * reachable too, so removing the others never separates an instruction
+	 * from its successor.
+	 */
+	private static int[] removeUnreachable(int[] code) {
+		int n = code.length - 2; // the last slot is the "go 1" added at load
+		boolean[] reached = new boolean[code.length];
+		int[] pending = new int[code.length];
+		int top = 0;
+
+		pending[top++] = 1;
+		reached[1] = true;
+		while (top > 0) {
+			int pc = pending[--top];
+			int op = PackedCode.opcodeOf(code[pc]);
+			int next = -1;
+			int target = -1;
+			if (op == Instruction.INFECT) {
+				// the victim runs this program from the infect's address
+				next = pc + 1;
+				target = infectStart(code[pc]);
+			} else if (acts(op)) {
+				next = pc + 1;
+			} else if (op == Instruction.GO) {
+				target = PackedCode.addressOf(code[pc]);
+			} else if (jumps(op)) {
+				next = pc + 1;
+				target = PackedCode.addressOf(code[pc]);
+			}
+			// anything else is an invalid instruction, which never moves on
+			if (inProgram(code, next) && !reached[next]) {
+				reached[next] = true;
+				pending[top++] = next;
+			}
+			if (inProgram(code, target) && !reached[target]) {
+				reached[target] = true;
+				pending[top++] = target;
+			}
+		}
+
+		int[] renumbered = new int[code.length];
+		int kept = 0;
+		for (int i = 1; i <= n; i++) {
+			if (reached[i]) {
+				renumbered[i] = ++kept;
+			}
+		}
+		if (kept == n) {
+			return code;
+		}
+		renumbered[n + 1] = kept + 1;
+
+		int[] out = new int[kept + 2];
+		out[kept + 1] = PackedCode.pack(Instruction.GO, 1);
+		for (int i = 1; i <= n + 1; i++) {
+			if (!reached[i]) {
+				continue;
+			}
+			int op = PackedCode.opcodeOf(code[i]);
+			int address = PackedCode.addressOf(code[i]);
+			// an address outside the program stays outside it
+			if ((jumps(op) || op == Instruction.INFECT) && inProgram(code, address)) {
+				address = renumbered[address];
+			}
+			out[renumbered[i]] = PackedCode.pack(op, address);
+		}
+		return out;
+	}
+
+	/*
+	 * Returns the step an infect starts its victim at.
+	 */
+	private static int infectStart(int instruction) {
+		int address = PackedCode.addressOf(instruction);
+		return (address == 0) ? 1 : address;
+	}
+
+	/*
+	 * Replaces tests that land on the action they guard with
+	 * superinstructions.
+	 */
+	private static void fuse(int[] code) {
+		for (int i = 1; i < code.length; i++) {
+			int op = PackedCode.opcodeOf(code[i]);
+			int target = PackedCode.addressOf(code[i]);
+			if (!inProgram(code, target)) {
+				continue;
+			}
+			int targetOp = PackedCode.opcodeOf(code[target]);
+			if (op == Instruction.IFENEMY && targetOp == Instruction.INFECT) {
+				code[i] = PackedCode.pack(IFENEMY_INFECT, target);
+			} else if (op == Instruction.IFEMPTY && targetOp == Instruction.HOP) {
+				code[i] = PackedCode.pack(IFEMPTY_HOP, target);
+			}
+		}
+	}
+}
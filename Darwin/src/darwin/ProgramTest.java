@@ -0,0 +1,243 @@
+package darwin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that the forms a species program is turned into at load time behave
+ * like the program itself. Run it as an application from the Darwin
+ * directory: each test prints whether it passed, and the run exits with
+ * status 1 if any failed.
+ */
+public class ProgramTest {
+
+	private int failures;
+
+	/*
+	 * Prints the outcome of a test; failure is null if it passed.
+	 */
+	private void report(String test, String failure) {
+		if (failure == null) {
+			System.out.println(test + " test passed.");
+		} else {
+			failures++;
+			System.out.println(test + " test failed: " + failure);
+		}
+	}
+
+	private static Species parse(String text) {
+		return new Species(new BufferedReader(new StringReader(text)));
+	}
+
+	/*
+	 * The program of s packed as Species does, before it is optimized.
+	 */
+	static int[] packedCode(Species s) {
+		int[] packed = new int[s.programSize() + 2];
+		for (int i = 1; i <= s.programSize(); i++) {
+			packed[i] = PackedCode.pack(s.programStep(i));
+		}
+		packed[packed.length - 1] = PackedCode.pack(Instruction.GO, 1);
+		return packed;
+	}
+
+	/*
+	 * The program of s, packed and optimized as Species does, whichever
+	 * species it ends up sharing code with.
+	 */
+	static int[] ownCode(Species s) {
+		return ProgramOptimizer.optimize(packedCode(s));
+	}
+
+	/*
+	 * A random program of 2 to 7 valid steps, which often has loops.
+	 */
+	static Species randomSpecies(SplittableRandom rand) {
+		int n = 2 + rand.nextInt(6);
+		ArrayList<Instruction> program = new ArrayList<Instruction>();
+		for (int i = 1; i <= n; i++) {
+			int op = Instruction.HOP + rand.nextInt(Instruction.IF2ENEMY);
+			int address = (op >= Instruction.INFECT) ? 1 + rand.nextInt(n) : 0;
+			program.add(new Instruction(op, address));
+		}
+		return new Species("Random", "black", program);
+	}
+
+	/*
+	 * Plays s, running code, against opponent on a 15 x 15 world with the
+	 * default budget, and returns the survivors of both.
+	 */
+	static String play(Species s, int[] code, Species opponent, long seed) {
+		return play(s, code, opponent, seed, World.DEFAULT_INSTRUCTION_BUDGET);
+	}
+
+	/*
+	 * As above under the given budget; if code is null s runs whatever code
+	 * the engine picks for it.
+	 */
+	static String play(Species s, int[] code, Species opponent, long seed, int budget) {
+		GridEngine engine = new GridEngine(15, 15, new Species[] {s, opponent});
+		engine.setInstructionBudget(budget, BudgetPolicy.FORFEIT);
+		if (code != null) {
+			engine.code[0] = code;
+			engine.tables[0] = TransitionTable.build(code);
+		}
+		SplittableRandom rand = new SplittableRandom(seed);
+		engine.setSeed(rand.nextLong());
+		engine.populate(10, rand);
+		engine.simulate(100);
+		return engine.population(0) + " " + engine.population(1);
+	}
+
+	/**
+	 * Two programs that loop without acting in different ways must not share
+	 * code, whichever is loaded first: where the budget stops them differs.
+	 */
+	public void testLoopingPrograms() {
+		try {
+			Species a = parse("Aloop\nred\nifenemy 5\nifempty 1\nleft\ngo 1\ninfect\n");
+			Species b = parse("Bloop\nblue\nifenemy 6\nifempty 3\nifempty 1\nleft\ngo 1\ninfect\n");
+			if (a.sameBehavior(b) || a.behaviorHash() == b.behaviorHash()) {
+				report("Looping programs", "the two programs were found to behave the same");
+				return;
+			}
+			if (!Arrays.equals(b.code(), ownCode(b))) {
+				report("Looping programs", "the second program runs the code of another");
+				return;
+			}
+			report("Looping programs", null);
+		} catch (Exception | Error e) {
+			report("Looping programs", e.toString());
+		}
+	}
+
+	/**
+	 * Programs with the same canonical form, bred at random from the species
+	 * in ./Creatures or made up at random, must play the same matches each
+	 * running its own code, including programs that loop without acting, and
+	 * under budgets small enough to stop them must play as their own code does.
+	 */
+	public void testCanonicalForms() {
+		try {
+			List<Species> loaded = SpeciesRegistry.shared().loadAll(new File("./Creatures"));
+			Species[] pool = loaded.toArray(new Species[loaded.size()]);
+			HashMap<CanonicalProgram, Species> seen = new HashMap<CanonicalProgram, Species>();
+			SplittableRandom rand = new SplittableRandom(3);
+			int pairs = 0;
+			for (int i = 0; i < 20000 && pairs < 400; i++) {
+				Species s;
+				if (i % 2 == 0) {
+					int k = rand.nextInt(pool.length);
+					s = Mutator.mutate(pool[k], rand);
+					pool[k] = s;
+				} else {
+					s = randomSpecies(rand);
+				}
+				Species other = seen.get(s.behavior());
+				if (other == null) {
+					seen.put(s.behavior(), s);
+					continue;
+				}
+				int[] mine = ownCode(s);
+				int[] theirs = ownCode(other);
+				if (Arrays.equals(mine, theirs)) {
+					continue;
+				}
+				if (s.behavior().isExact()) {
+					report("Canonical forms", "looping programs with different code share a form");
+					return;
+				}
+				pairs++;
+				Species opponent = loaded.get(rand.nextInt(loaded.size()));
+				for (long seed = 0; seed < 3; seed++) {
+					if (!play(s, mine, opponent, seed).equals(play(other, theirs, opponent, seed))) {
+						report("Canonical forms", "programs with the same form played differently");
+						return;
+					}
+				}
+				// under small budgets a species that shares code with another
+				// must still play as its own program does
+				for (int budget = 1; budget <= 4; budget++) {
+					if (!play(s, null, opponent, 0, budget).equals(play(s, mine, opponent, 0, budget))) {
+						report("Canonical forms", "shared code played differently under budget " + budget);
+						return;
+					}
+				}
+			}
+			if (pairs == 0) {
+				report("Canonical forms", "no programs with the same form were bred");
+				return;
+			}
+			report("Canonical forms", null);
+		} catch (Exception | Error e) {
+			report("Canonical forms", e.toString());
+		}
+	}
+
+	/**
+	 * Optimized programs, of the species in ./Creatures, of mutants bred from
+	 * them and of random programs, play the same matches as the programs they
+	 * were optimized from, as long as the budget cannot stop them.
+	 */
+	public void testOptimizer() {
+		try {
+			List<Species> loaded = SpeciesRegistry.shared().loadAll(new File("./Creatures"));
+			Species[] pool = loaded.toArray(new Species[loaded.size()]);
+			SplittableRandom rand = new SplittableRandom(5);
+			int changed = 0;
+			for (int i = 0; i < 3000; i++) {
+				Species s;
+				if (i < pool.length) {
+					s = pool[i];
+				} else if (i % 2 == 0) {
+					int k = rand.nextInt(pool.length);
+					s = Mutator.mutate(pool[k], rand);
+					pool[k] = s;
+				} else {
+					s = randomSpecies(rand);
+				}
+				int steps = s.analysis().maxStepsToAction();
+				int[] packed = packedCode(s);
+				int[] optimized = ProgramOptimizer.optimize(packed);
+				if (steps == ProgramAnalysis.UNBOUNDED || steps >= World.DEFAULT_INSTRUCTION_BUDGET
+						|| Arrays.equals(packed, optimized)) {
+					continue;
+				}
+				changed++;
+				Species opponent = loaded.get(rand.nextInt(loaded.size()));
+				long seed = rand.nextLong();
+				if (!play(s, packed, opponent, seed).equals(play(s, optimized, opponent, seed))) {
+					report("Optimizer", "the optimized program of " + s.getName() + " played differently:\n"
+							+ s.programToString());
+					return;
+				}
+			}
+			if (changed == 0) {
+				report("Optimizer", "no program was changed by the optimizer");
+				return;
+			}
+			report("Optimizer", null);
+		} catch (Exception | Error e) {
+			report("Optimizer", e.toString());
+		}
+	}
+
+	/**
+	 * Runs every test, and exits with status 1 if any failed.
+	 */
+	public static void main(String[] args) {
+		ProgramTest t = new ProgramTest();
+		t.testLoopingPrograms();
+		t.testCanonicalForms();
+		t.testOptimizer();
+		if (t.failures > 0) {
+			System.exit(1);
+		}
+	}
+}
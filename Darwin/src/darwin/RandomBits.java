@@ -0,0 +1,41 @@
+package darwin;
+
+/**
+ * Stateless random bits for the engines. The bits a creature sees in a turn
+ * depend only on the simulation seed, the round and the creature's index, so a
+ * match replays exactly from its seed no matter how the work is split between
+ * threads or in what order the creatures are visited.
+ * 
+ * The mixing function is the finalizer of SplitMix64, the generator behind
+ * java.util.SplittableRandom.
+ */
+public final class RandomBits {
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private RandomBits() {
+	}
+
+	/**
+	 * Scramble the bits of z. Every output bit depends on every input bit.
+	 */
+	public static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns 64 random bits for the turn that creature takes in round.
+	 */
+	public static long forTurn(long seed, long round, int creature) {
+		return mix64(mix64(seed + round * GOLDEN_GAMMA) + (creature + 1) * GOLDEN_GAMMA);
+	}
+
+	/**
+	 * Returns the next 64 random bits after bits, for turns that use up all 64.
+	 */
+	public static long next(long bits) {
+		return mix64(bits + GOLDEN_GAMMA);
+	}
+}
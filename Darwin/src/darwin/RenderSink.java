@@ -0,0 +1,25 @@
+package darwin;
+
+/**
+ * A RenderSink receives the square-by-square display updates produced by the
+ * creatures as they take their turns. The Creature class only talks to the
+ * sink of its World, so the same simulation can be drawn in the WorldMap
+ * window or run with no display at all.
+ */
+public interface RenderSink {
+
+	/**
+	 * Update the contents of the square indicated by pos. If c is ' ', then the
+	 * square is cleared, and dir and color are ignored.
+	 * 
+	 * @see WorldMap#displaySquare(Position, char, int, String)
+	 */
+	public void displaySquare(Position pos, char c, int dir, String color);
+
+	/**
+	 * Called once after every creature has had its turn in a round. Sinks that
+	 * buffer updates publish them here.
+	 */
+	public void endRound();
+
+}
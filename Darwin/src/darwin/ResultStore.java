@@ -0,0 +1,476 @@
+package darwin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An on-disk store of match outcomes, for analyzing sweeps of millions of
+ * matches. Each record holds the species that took part, the seed, the
+ * rounds actually played, the survivors of each species and how long the
+ * match took.
+ *
+ * The store is a directory with a file per column, each a plain array of
+ * little-endian ints or longs, so a scan reads only the columns it needs,
+ * straight from memory-mapped files. Species are stored as small ids; the
+ * names behind them are kept one per line in species.txt. A match has up to
+ * MAX_SPECIES species; unused slots hold -1 with 0 survivors.
+ *
+ * Columns are only ever appended to. Records are buffered and written a
+ * batch at a time, and a batch cut short by a crash is dropped when the store
+ * is opened again: the store holds as many records as its shortest column.
+ * Adding records is safe from several threads; scans see the records written
+ * by the last flush. A store opened with openForReading can be scanned while
+ * another process adds to it, and is never changed.
+ */
+public final class ResultStore implements Closeable {
+
+	/** The most species a stored match can have. */
+	public static final int MAX_SPECIES = 4;
+
+	// records scanned per mapping, to keep each under 2GB
+	private static final int CHUNK = 1 << 24;
+
+	private final File directory;
+	private final Column seed;
+	private final Column rounds;
+	private final Column nanos;
+	private final Column[] species = new Column[MAX_SPECIES];
+	private final Column[] survivors = new Column[MAX_SPECIES];
+	private final Column[] columns;
+
+	private final ArrayList<String> names = new ArrayList<String>();
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	private final int batch;
+	private final boolean readOnly;
+	private int buffered;
+	private long size; // records on disk
+
+	/*
+	 * One column file and the batch waiting to be written to it.
+	 */
+	private static class Column {
+		final FileChannel channel;
+		final int width;
+		final ByteBuffer pending;
+
+		Column(File file, int width, int batch, boolean readOnly) throws IOException {
+			if (readOnly) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			} else {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+			}
+			this.width = width;
+			pending = ByteBuffer.allocate(width * batch).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		long records() throws IOException {
+			return channel.size() / width;
+		}
+
+		MappedByteBuffer map(long from, int count) throws IOException {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, from * width, (long) count * width);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			return map;
+		}
+	}
+
+	/**
+	 * Open the store in directory, creating it if need be, writing records
+	 * in batches of the given size.
+	 *
+	 * @throws IOException if the store cannot be read or written
+	 * @throws IllegalArgumentException if batch is not positive
+	 */
+	public ResultStore(File directory, int batch) throws IOException {
+		this(directory, batch, false);
+	}
+
+	/**
+	 * Open the existing store in directory for scanning only. Nothing is
+	 * created or cut off, and the store cannot be added to; a batch being
+	 * written by another process is not counted.
+	 *
+	 * @throws FileNotFoundException if there is no store in directory
+	 * @throws IOException if the store cannot be read
+	 */
+	public static ResultStore openForReading(File directory) throws IOException {
+		if (!new File(directory, "seed.col").isFile()) {
+			throw new FileNotFoundException("no result store in " + directory);
+		}
+		return new ResultStore(directory, 1, true);
+	}
+
+	private ResultStore(File directory, int batch, boolean readOnly) throws IOException {
+		if (batch <= 0) {
+			throw new IllegalArgumentException("batch must be positive.");
+		}
+		if (!readOnly && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		this.directory = directory;
+		this.batch = batch;
+		this.readOnly = readOnly;
+		seed = new Column(new File(directory, "seed.col"), 8, batch, readOnly);
+		rounds = new Column(new File(directory, "rounds.col"), 4, batch, readOnly);
+		nanos = new Column(new File(directory, "nanos.col"), 8, batch, readOnly);
+		ArrayList<Column> all = new ArrayList<Column>();
+		all.add(seed);
+		all.add(rounds);
+		all.add(nanos);
+		for (int i = 0; i < MAX_SPECIES; i++) {
+			species[i] = new Column(new File(directory, "species" + i + ".col"), 4, batch, readOnly);
+			survivors[i] = new Column(new File(directory, "survivors" + i + ".col"), 4, batch, readOnly);
+			all.add(species[i]);
+			all.add(survivors[i]);
+		}
+		columns = all.toArray(new Column[all.size()]);
+
+		// drop a batch that was not written to every column
+		size = Long.MAX_VALUE;
+		for (Column column : columns) {
+			size = Math.min(size, column.records());
+		}
+		for (Column column : columns) {
+			if (!readOnly) {
+				column.channel.truncate(size * column.width);
+			}
+		}
+
+		File nameFile = new File(directory, "species.txt");
+		if (nameFile.exists()) {
+			for (String name : Files.readAllLines(nameFile.toPath(), StandardCharsets.UTF_8)) {
+				ids.put(name, names.size());
+				names.add(name);
+			}
+		}
+	}
+
+	/**
+	 * Returns the id of the species stored under name, giving it the next id
+	 * if it has none.
+	 *
+	 * @throws IOException if the new name cannot be written
+	 * @throws IllegalArgumentException if name is empty or holds a line break
+	 * @throws IllegalStateException if name is new and the store was opened
+	 *         for reading
+	 */
+	public synchronized int idOf(String name) throws IOException {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		if (readOnly) {
+			throw new IllegalStateException("the store is open for reading only.");
+		}
+		if (name.isEmpty() || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("bad species name.");
+		}
+		Files.write(new File(directory, "species.txt").toPath(), (name + "\n").getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		ids.put(name, names.size());
+		names.add(name);
+		return names.size() - 1;
+	}
+
+	/**
+	 * Returns the name of the species with the given id.
+	 *
+	 * @pre 0 <= id < the number of names.
+	 */
+	public synchronized String nameOf(int id) {
+		return names.get(id);
+	}
+
+	/**
+	 * Returns the number of species names in the store.
+	 */
+	public synchronized int names() {
+		return names.size();
+	}
+
+	/**
+	 * Add the record of one match, writing the batch once it is full.
+	 *
+	 * @param ids the id of each species in the match, as from idOf
+	 * @param rounds the rounds actually played, as from MatchResult.rounds
+	 * @param result the survivors of each species, in the same order
+	 * @param nanos how long the match took, in nanoseconds
+	 * @throws IOException if the batch cannot be written
+	 * @throws IllegalArgumentException if the match has no species, more
+	 *         than MAX_SPECIES, or a result of another size
+	 * @throws IllegalStateException if the store was opened for reading
+	 */
+	public synchronized void add(int[] ids, long seed, int rounds, MatchResult result, long nanos)
+			throws IOException {
+		if (readOnly) {
+			throw new IllegalStateException("the store is open for reading only.");
+		}
+		if (ids.length == 0 || ids.length > MAX_SPECIES || result.size() != ids.length) {
+			throw new IllegalArgumentException("a record needs 1 to " + MAX_SPECIES + " species and their results.");
+		}
+		this.seed.pending.putLong(seed);
+		this.rounds.pending.putInt(rounds);
+		this.nanos.pending.putLong(nanos);
+		for (int i = 0; i < MAX_SPECIES; i++) {
+			species[i].pending.putInt((i < ids.length) ? ids[i] : -1);
+			survivors[i].pending.putInt((i < ids.length) ? result.survivors(i) : 0);
+		}
+		if (++buffered == batch) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write the records added since the last batch.
+	 *
+	 * @throws IOException if they cannot be written
+	 */
+	public synchronized void flush() throws IOException {
+		if (buffered == 0) {
+			return;
+		}
+		for (Column column : columns) {
+			column.pending.flip();
+			long at = size * column.width;
+			while (column.pending.hasRemaining()) {
+				at += column.channel.write(column.pending, at);
+			}
+			column.pending.clear();
+		}
+		size += buffered;
+		buffered = 0;
+	}
+
+	/**
+	 * Returns the number of records written, not counting those still
+	 * buffered.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Write what is buffered and close the column files.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			for (Column column : columns) {
+				column.channel.close();
+			}
+		}
+	}
+
+	/**
+	 * The record of one species over the stored matches, counted as
+	 * Tournament counts them: a win is shared between the species that tie
+	 * for the most survivors.
+	 */
+	public static class Record {
+		private final int id;
+		private long games;
+		private double score;
+
+		Record(int id) {
+			this.id = id;
+		}
+
+		/**
+		 * Returns the id of the species, or of the opponent, the record is
+		 * for.
+		 */
+		public int id() {
+			return id;
+		}
+
+		/**
+		 * Returns the number of matches counted.
+		 */
+		public long games() {
+			return games;
+		}
+
+		/**
+		 * Returns the wins, counting shared wins by their share.
+		 */
+		public double score() {
+			return score;
+		}
+
+		/**
+		 * Returns score() / games(), or 0 if no games were counted.
+		 */
+		public double winRate() {
+			return (games == 0) ? 0 : score / games;
+		}
+	}
+
+	/**
+	 * Returns the record of every species over all the stored matches,
+	 * indexed by id.
+	 *
+	 * @throws IOException if the columns cannot be read
+	 */
+	public synchronized List<Record> winRates() throws IOException {
+		return aggregate(-1);
+	}
+
+	/**
+	 * Returns the record of species id against each other species, indexed
+	 * by the opponent's id: how it did in the stored matches the two played
+	 * in together.
+	 *
+	 * @throws IOException if the columns cannot be read
+	 */
+	public synchronized List<Record> winRatesAgainst(int id) throws IOException {
+		return aggregate(id);
+	}
+
+	/*
+	 * Scans the species and survivor columns. With focus -1 every species is
+	 * credited with its own score; otherwise focus's score is credited to
+	 * each opponent it met.
+	 */
+	private List<Record> aggregate(int focus) throws IOException {
+		ArrayList<Record> records = new ArrayList<Record>(names.size());
+		for (int id = 0; id < names.size(); id++) {
+			records.add(new Record(id));
+		}
+		int[] id = new int[MAX_SPECIES];
+		int[] count = new int[MAX_SPECIES];
+		IntBuffer[] idColumn = new IntBuffer[MAX_SPECIES];
+		IntBuffer[] countColumn = new IntBuffer[MAX_SPECIES];
+		for (long from = 0; from < size; from += CHUNK) {
+			int n = (int) Math.min(CHUNK, size - from);
+			for (int i = 0; i < MAX_SPECIES; i++) {
+				idColumn[i] = species[i].map(from, n).asIntBuffer();
+				countColumn[i] = survivors[i].map(from, n).asIntBuffer();
+			}
+			for (int r = 0; r < n; r++) {
+				int k = 0;
+				int most = -1;
+				int leaders = 0;
+				int self = -1;
+				for (int i = 0; i < MAX_SPECIES; i++) {
+					int s = idColumn[i].get(r);
+					if (s < 0) {
+						continue;
+					}
+					id[k] = s;
+					count[k] = countColumn[i].get(r);
+					if (count[k] > most) {
+						most = count[k];
+						leaders = 1;
+					} else if (count[k] == most) {
+						leaders++;
+					}
+					if (s == focus) {
+						self = k;
+					}
+					k++;
+				}
+
+				if (focus < 0) {
+					for (int i = 0; i < k; i++) {
+						Record record = records.get(id[i]);
+						record.games++;
+						if (count[i] == most) {
+							record.score += 1.0 / leaders;
+						}
+					}
+				} else if (self >= 0) {
+					double share = (count[self] == most) ? 1.0 / leaders : 0;
+					for (int i = 0; i < k; i++) {
+						if (i != self) {
+							Record record = records.get(id[i]);
+							record.games++;
+							record.score += share;
+						}
+					}
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the total of the duration column, in nanoseconds.
+	 *
+	 * @throws IOException if the column cannot be read
+	 */
+	public synchronized long totalNanos() throws IOException {
+		long total = 0;
+		for (long from = 0; from < size; from += CHUNK) {
+			int n = (int) Math.min(CHUNK, size - from);
+			LongBuffer column = nanos.map(from, n).asLongBuffer();
+			for (int r = 0; r < n; r++) {
+				total += column.get(r);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Prints the win rate of every species in the store in a directory, or,
+	 * given a species name too, that species' win rate against each
+	 * opponent, and how long the scan took.
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("usage: ResultStore directory [species]");
+			return;
+		}
+		try {
+			ResultStore store = openForReading(new File(args[0]));
+			try {
+				long start = System.nanoTime();
+				List<Record> records;
+				if (args.length > 1) {
+					Integer id = store.ids.get(args[1]);
+					if (id == null) {
+						System.err.println("no species " + args[1]);
+						return;
+					}
+					records = store.winRatesAgainst(id);
+				} else {
+					records = store.winRates();
+				}
+				long took = System.nanoTime() - start;
+
+				PrintWriter out = new PrintWriter(System.out);
+				out.println(String.format("%-20s %10s %12s %8s", (args.length > 1) ? "opponent" : "species", "games",
+						"wins", "win rate"));
+				for (Record record : records) {
+					if (record.games() > 0) {
+						out.println(String.format("%-20s %10d %12.1f %8.3f", store.nameOf(record.id()),
+								record.games(), record.score(), record.winRate()));
+					}
+				}
+				out.println(String.format("%d matches scanned in %.3f s", store.size(), took / 1e9));
+				out.flush();
+			} finally {
+				store.close();
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package darwin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.file.Files;
+
+/**
+ * Checks that ResultStore records the rounds a match was actually played for
+ * and that a store opened for reading is left as it was. Run it as an
+ * application from the Darwin directory: each test prints whether it passed,
+ * and the run exits with status 1 if any failed.
+ */
+public class ResultStoreTest {
+
+	private int failures;
+
+	/*
+	 * Prints the outcome of a test; failure is null if it passed.
+	 */
+	private void report(String test, String failure) {
+		if (failure == null) {
+			System.out.println(test + " test passed.");
+		} else {
+			failures++;
+			System.out.println(test + " test failed: " + failure);
+		}
+	}
+
+	private static Species parse(String text) {
+		return new Species(new BufferedReader(new StringReader(text)));
+	}
+
+	/*
+	 * Deletes a store directory and its files.
+	 */
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * A match that stops early reports the round it stopped at, and that is
+	 * what the rounds column holds.
+	 */
+	public void testRoundsPlayed() {
+		File directory = null;
+		try {
+			directory = Files.createTempDirectory("darwin").toFile();
+			Species rover = SpeciesRegistry.shared().load("./Creatures/Rover.txt");
+			Species sitter = parse("Sitter\nblue\nleft\ngo 1\n");
+			DarwinConfig config = new DarwinConfig();
+			config.setSize(6, 6);
+			config.setCreaturesPerSpecies(4);
+			config.setRounds(10000);
+			Match match = new Match(new Species[] {rover, sitter}, config, 1);
+			MatchResult result = match.play();
+			if (result.survivors(1) != 0 || result.rounds() <= 0 || result.rounds() >= config.rounds()) {
+				report("Rounds played", "the match reported " + result.rounds() + " rounds");
+				return;
+			}
+
+			ResultStore store = new ResultStore(directory, 4);
+			try {
+				int[] ids = {store.idOf(rover.getName()), store.idOf(sitter.getName())};
+				store.add(ids, match.seed(), result.rounds(), result, 0);
+			} finally {
+				store.close();
+			}
+			RandomAccessFile column = new RandomAccessFile(new File(directory, "rounds.col"), "r");
+			int stored = Integer.reverseBytes(column.readInt());
+			column.close();
+			if (stored != result.rounds()) {
+				report("Rounds played", "the store holds " + stored + " rounds");
+				return;
+			}
+			report("Rounds played", null);
+		} catch (Exception | Error e) {
+			report("Rounds played", e.toString());
+		} finally {
+			if (directory != null) {
+				delete(directory);
+			}
+		}
+	}
+
+	/**
+	 * Opening a store for reading neither creates a missing one nor cuts off
+	 * a batch still being written.
+	 */
+	public void testOpenForReading() {
+		File directory = null;
+		try {
+			directory = Files.createTempDirectory("darwin").toFile();
+			File missing = new File(directory, "missing");
+			try {
+				ResultStore.openForReading(missing).close();
+				report("Open for reading", "a missing store was opened");
+				return;
+			} catch (FileNotFoundException e) {
+				// refused, as it should be
+			}
+			if (missing.exists()) {
+				report("Open for reading", "a missing store was created");
+				return;
+			}
+
+			ResultStore store = new ResultStore(directory, 1);
+			store.add(new int[] {store.idOf("A"), store.idOf("B")}, 1, 5, new MatchResult(new int[] {3, 0}, 5), 0);
+			store.close();
+			File seeds = new File(directory, "seed.col");
+			RandomAccessFile raw = new RandomAccessFile(seeds, "rw");
+			raw.setLength(raw.length() + 8);
+			raw.close();
+
+			ResultStore reader = ResultStore.openForReading(directory);
+			long size = reader.size();
+			double score = reader.winRates().get(0).score();
+			reader.close();
+			if (size != 1 || score != 1 || seeds.length() != 16) {
+				report("Open for reading", "the store read " + size + " records and was left " + seeds.length()
+						+ " bytes long");
+				return;
+			}
+			report("Open for reading", null);
+		} catch (Exception | Error e) {
+			report("Open for reading", e.toString());
+		} finally {
+			if (directory != null) {
+				delete(new File(directory, "missing"));
+				delete(directory);
+			}
+		}
+	}
+
+	/**
+	 * Runs every test, and exits with status 1 if any failed.
+	 */
+	public static void main(String[] args) {
+		ResultStoreTest t = new ResultStoreTest();
+		t.testRoundsPlayed();
+		t.testOpenForReading();
+		if (t.failures > 0) {
+			System.exit(1);
+		}
+	}
+}
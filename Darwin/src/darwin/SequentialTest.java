@@ -0,0 +1,75 @@
+package darwin;
+
+/**
+ * Wald's sequential probability ratio test for deciding which of two species
+ * is the stronger from the matches played so far.
+ *
+ * The test weighs the hypothesis that the first species wins a decided match
+ * with probability 1/2 + margin against the hypothesis that it wins with
+ * probability 1/2 - margin. Drawn matches say nothing either way and are left
+ * out. Each win moves the log likelihood ratio up by log((1/2 + margin) /
+ * (1/2 - margin)) and each loss moves it down as much; the test stops when the
+ * ratio crosses log((1 - beta) / alpha) or log(beta / (1 - alpha)). alpha is
+ * the chance of wrongly naming the first species, beta that of wrongly naming
+ * the second, when the true difference is at least the margin.
+ */
+public final class SequentialTest {
+
+	/** No winner is established yet. */
+	public static final int UNDECIDED = 0;
+	/** The first species is the stronger. */
+	public static final int FIRST = 1;
+	/** The second species is the stronger. */
+	public static final int SECOND = -1;
+
+	private final double step;
+	private final double upper;
+	private final double lower;
+
+	/**
+	 * Create a test with the given error rates and margin.
+	 *
+	 * @throws IllegalArgumentException unless 0 < alpha, beta < 1/2 and
+	 *         0 < margin < 1/2
+	 */
+	public SequentialTest(double alpha, double beta, double margin) {
+		if (!(alpha > 0 && alpha < 0.5 && beta > 0 && beta < 0.5)) {
+			throw new IllegalArgumentException("error rates must be between 0 and 1/2.");
+		}
+		if (!(margin > 0 && margin < 0.5)) {
+			throw new IllegalArgumentException("margin must be between 0 and 1/2.");
+		}
+		step = Math.log((0.5 + margin) / (0.5 - margin));
+		upper = Math.log((1 - beta) / alpha);
+		lower = Math.log(beta / (1 - alpha));
+	}
+
+	/**
+	 * Create a test that names the right species with the given confidence,
+	 * alpha = beta = 1 - confidence.
+	 *
+	 * @throws IllegalArgumentException unless 1/2 < confidence < 1 and
+	 *         0 < margin < 1/2
+	 */
+	public static SequentialTest withConfidence(double confidence, double margin) {
+		return new SequentialTest(1 - confidence, 1 - confidence, margin);
+	}
+
+	/**
+	 * Decide on the matches played so far.
+	 *
+	 * @param wins the matches the first species won outright
+	 * @param losses the matches the second species won outright
+	 * @return FIRST, SECOND or UNDECIDED.
+	 */
+	public int decide(int wins, int losses) {
+		double ratio = (wins - losses) * step;
+		if (ratio >= upper) {
+			return FIRST;
+		}
+		if (ratio <= lower) {
+			return SECOND;
+		}
+		return UNDECIDED;
+	}
+}
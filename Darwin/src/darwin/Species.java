@@ -20,88 +20,44 @@ public class Species {
 	private char speciesChar; // the first character of Species name
 	private ArrayList<Instruction> program;
 
+	// the program compiled for the interpreter: code[i] is instruction i
+	// packed with PackedCode.pack. code[0] is unused, and the slot after the
+	// last instruction holds "go 1" so that running off the end wraps around.
+	// See ProgramOptimizer for how it differs from program.
+	private int[] code;
+	private ProgramAnalysis analysis;
+	private CanonicalProgram behavior;
+	private TransitionTable transitions;
+	private CompiledProgram compiled; // built on first use
+	private Species template; // the species compiled is shared with, if any
+
+	// a species that behaves the same and was built first, whose code is run
+	// instead of this one's under a budget of at least sharedBudget, or null
+	private Species sharedWith;
+	private int sharedBudget;
+	private boolean compileTried;
+	private boolean usesRandom;
+	private volatile boolean flagged;
+	private volatile int id = -1; // assigned by a SpeciesRegistry
+
 	/**
-	 * Create a species for the given fileReader.
+	 * Create a species for the given fileReader. The file is read with
+	 * SpeciesParser, so whitespace around a line is ignored and the blank line
+	 * after the program may be left out at the end of the file.
 	 * 
 	 *  @param fileReader
+	 *  @throws IllegalArgumentException if the program has an unknown
+	 *  instruction or an address that is not one of its steps
 	 */
 	public Species(BufferedReader fileReader) {
 		try {
-			BufferedReader in = new BufferedReader(fileReader);
-			String name = in.readLine();
-			String color = in.readLine();
-			
-			this.name = name;
-			this.color = color;
-			speciesChar = name.charAt(0);
-			
-			//create a program to hold the instructions from the file
-			program = new ArrayList<Instruction>();
-			String nextLine = in.readLine();
-
-			while (!nextLine.isEmpty()) {
-				String instruction;
-				int address;
-
-				if (nextLine.split(" ").length > 1) {
-					// for instructions with addresses:
-					// ifempty, ifwall, ifsame, ifenemy, ifrandom, go
-					// separate and identify the instruction & address
-					String[] split = nextLine.split(" ");
-
-					instruction = split[0];
-					address = Integer.valueOf(split[1]);
-
-					int opcode = 0;
-
-					// assign the correct opcode for the given instruction
-					if( instruction.equals("ifempty")) {
-						opcode = 5;
-					}else if( instruction.equals("ifwall")) {
-						opcode = 6;				
-					}else if( instruction.equals("ifsame")) {
-						opcode = 7;
-					}else if( instruction.equals("ifenemy")) {
-						opcode = 8;
-					}else if( instruction.equals("ifrandom")) {
-						opcode = 9;
-					}else if( instruction.equals("go")) {
-						opcode = 10;
-					} 
-
-					Instruction instruct = new Instruction(opcode, address);
-
-					// add the new instruction to the program
-					program.add(instruct);
-
-
-				}else { 
-					//instructions: hop, left, right, and infect 
-					//do not require an address	
-					instruction = nextLine;
-
-					int opcode = 0;
-
-					// assign the correct opcode for the given instruction
-					if( instruction.equals("hop")) {
-						opcode = 1;
-					}else if( instruction.equals("left")) {
-						opcode = 2;
-					}else if( instruction.equals("right")) {
-						opcode = 3;
-					}else if( instruction.equals("infect")) {
-						opcode = 4;
-					}
-					Instruction instruct = new Instruction(opcode, 0);
-
-					// add the new instruction to the program
-					program.add(instruct);
-
-				}
-
-				nextLine = in.readLine();
-
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while ((read = fileReader.read(buffer)) > 0) {
+				text.append(buffer, 0, read);
 			}
+			share(SpeciesParser.parse(text));
 
 		} catch (IOException e) {
 			System.out.println(
@@ -113,6 +69,104 @@ public class Species {
 
 	}
 
+	/*
+	 * Create a species for a parsed program. Only SpeciesParser parses.
+	 */
+	Species(String name, String color, ArrayList<Instruction> program) {
+		this.name = name;
+		this.color = color;
+		speciesChar = name.charAt(0);
+		this.program = program;
+
+		int[] packed = compile(program);
+		analysis = ProgramAnalysis.analyze(packed);
+		code = ProgramOptimizer.optimize(packed);
+		behavior = CanonicalProgram.of(code);
+		transitions = TransitionTable.build(code);
+		for (int i = 1; i < code.length; i++) {
+			if (PackedCode.opcodeOf(code[i]) == Instruction.IFRANDOM) {
+				usesRandom = true;
+			}
+		}
+
+		// a program that behaves like one seen before runs that one's code,
+		// and shares its compiled class, under any budget that neither program
+		// can run out of
+		Species same = SpeciesCache.shared().sameBehavior(this);
+		if (same != null) {
+			sharedWith = (same.template != null) ? same.template : same;
+			int mine = analysis.maxStepsToAction();
+			int theirs = sharedWith.analysis.maxStepsToAction();
+			if (Arrays.equals(code, sharedWith.code)) {
+				sharedBudget = 0;
+			} else if (mine == ProgramAnalysis.UNBOUNDED || theirs == ProgramAnalysis.UNBOUNDED) {
+				sharedBudget = Integer.MAX_VALUE;
+			} else {
+				// the steps before the action, and the action
+				sharedBudget = Math.max(mine, theirs) + 1;
+			}
+			usesRandom |= sharedWith.usesRandom;
+		}
+	}
+
+	private Species() {
+	}
+
+	/**
+	 * Return a new species with the same name, color and program as this one.
+	 * The copy is not registered and is never flagged, but shares everything
+	 * built from the program, including the compiled code, with this species.
+	 * 
+	 * @return the copy.
+	 */
+	public Species copy() {
+		Species copy = new Species();
+		copy.share(this);
+		return copy;
+	}
+
+	/*
+	 * Take the program and everything built from it from template.
+	 */
+	private void share(Species template) {
+		name = template.name;
+		color = template.color;
+		speciesChar = template.speciesChar;
+		program = template.program;
+		code = template.code;
+		analysis = template.analysis;
+		behavior = template.behavior;
+		transitions = template.transitions;
+		usesRandom = template.usesRandom;
+		sharedWith = template.sharedWith;
+		sharedBudget = template.sharedBudget;
+		this.template = (template.template != null) ? template.template : template;
+	}
+
+	/*
+	 * The species whose code creatures of this one run under budget: the one
+	 * it shares code with if the budget is large enough, and otherwise itself
+	 * or the species it is a copy of.
+	 */
+	private Species runs(int budget) {
+		if (sharedWith != null && budget >= sharedBudget) {
+			return sharedWith;
+		}
+		return (template != null) ? template : this;
+	}
+
+
+	/*
+	 * Packs the program into the int[] form described at code.
+	 */
+	private static int[] compile(ArrayList<Instruction> program) {
+		int[] code = new int[program.size() + 2];
+		for (int i = 1; i <= program.size(); i++) {
+			code[i] = PackedCode.pack(program.get(i - 1));
+		}
+		code[program.size() + 1] = PackedCode.pack(Instruction.GO, 1);
+		return code;
+	}
 
 	/**
 	 * Return the char for the species
@@ -123,6 +177,22 @@ public class Species {
 		return speciesChar;
 	}
 
+	/**
+	 * Return the id given to the species by its SpeciesRegistry.
+	 * 
+	 * @return the id, or -1 if the species has not been registered.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/*
+	 * Only SpeciesRegistry assigns ids.
+	 */
+	void setId(int id) {
+		this.id = id;
+	}
+
 	/**
 	 * Return the name of the species.
 	 * 
@@ -160,6 +230,146 @@ public class Species {
 		return program.get(i-1);
 	}
 
+	/**
+	 * Return the compiled program, as rewritten by ProgramOptimizer. Slot i
+	 * holds instruction i packed with PackedCode.pack, slot 0 is unused, and
+	 * the last slot holds "go 1". Steps are numbered after unreachable
+	 * instructions have been removed, so they need not match programStep. The
+	 * array is shared and must not be modified.
+	 * 
+	 * @return the packed program.
+	 */
+	int[] code() {
+		return code;
+	}
+
+	/**
+	 * Return the packed program creatures run under the given per-turn
+	 * budget. If a species with the same behavior was built first, and the
+	 * budget is large enough that neither program can run out of it, this is
+	 * that species' code; otherwise it is code().
+	 * 
+	 * @return the packed program.
+	 */
+	int[] code(int budget) {
+		return runs(budget).code;
+	}
+
+	/**
+	 * Return what analyzing the program at load time found.
+	 * 
+	 * @return the analysis.
+	 */
+	public ProgramAnalysis analysis() {
+		return analysis;
+	}
+
+	/**
+	 * Return a 64-bit hash of what the program does, as CanonicalProgram
+	 * finds it. Species that behave the same have the same hash, whatever
+	 * their programs look like, unless they can loop without acting; those
+	 * only share a hash with programs of identical optimized code.
+	 * 
+	 * @return the hash.
+	 */
+	public long behaviorHash() {
+		return behavior.hash();
+	}
+
+	/**
+	 * Return a 64-bit hash of what the program does under the given per-turn
+	 * budget. It is behaviorHash() if no creature can run out of the budget,
+	 * and otherwise a hash of the exact optimized code, since where the budget
+	 * stops a creature depends on it.
+	 * 
+	 * @return the hash.
+	 */
+	public long behaviorHash(int budget) {
+		int steps = analysis.maxStepsToAction();
+		if (steps != ProgramAnalysis.UNBOUNDED && budget > steps) {
+			return behavior.hash();
+		}
+		return CanonicalProgram.exact(code).hash();
+	}
+
+	/**
+	 * Return whether the program of this species behaves like that of other,
+	 * as long as the budget is at least as long as either program. Programs
+	 * that can loop without acting only behave alike if their optimized code
+	 * is identical, whatever the budget.
+	 * 
+	 * @return true if their canonical programs are equal.
+	 */
+	public boolean sameBehavior(Species other) {
+		return behavior.equals(other.behavior);
+	}
+
+	/**
+	 * Return the canonical form of the program.
+	 */
+	CanonicalProgram behavior() {
+		return behavior;
+	}
+
+	/**
+	 * Return the transition table for code(budget).
+	 * 
+	 * @return the table, built when the species was loaded.
+	 */
+	TransitionTable transitions(int budget) {
+		return runs(budget).transitions;
+	}
+
+	/**
+	 * Return code(budget) compiled to a hidden class, compiling it the first
+	 * time it is asked for.
+	 * 
+	 * @return the compiled program, or null if it cannot be compiled.
+	 */
+	CompiledProgram compiled(int budget) {
+		return runs(budget).compiled();
+	}
+
+	/*
+	 * Compiles this species' own code, once.
+	 */
+	private synchronized CompiledProgram compiled() {
+		if (template != null) {
+			return template.compiled();
+		}
+		if (!compileTried) {
+			compiled = ProgramCompiler.compile(code);
+			compileTried = true;
+		}
+		return compiled;
+	}
+
+	/**
+	 * Return whether the program contains an ifrandom instruction.
+	 * 
+	 * @return true if creatures of this species ever need random bits.
+	 */
+	boolean usesRandom() {
+		return usesRandom;
+	}
+
+	/**
+	 * Return whether a creature of this species has ever used up its whole
+	 * instruction budget without acting, under BudgetPolicy.FLAG.
+	 * 
+	 * @return true if the species has been flagged.
+	 */
+	public boolean isFlagged() {
+		return flagged;
+	}
+
+	/**
+	 * Mark the species as misbehaving.
+	 */
+	public void flag() {
+		flagged = true;
+	}
+
 	/**
 	 * Return a String representation of the program.
 	 * 
@@ -0,0 +1,225 @@
+package darwin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parsed species files, kept for the life of the program so that a file is
+ * parsed, analyzed and optimized once however many matches load it.
+ *
+ * An entry is found by the file's path and is used as long as the file's
+ * modification time and length are unchanged. When they change the file is
+ * read again and its contents hashed; if some file with the same contents has
+ * been parsed before, under any path, that species is used again.
+ *
+ * The species handed out are templates shared by every caller: register a
+ * copy(), never the template itself. SpeciesRegistry does this.
+ *
+ * The cache also remembers one species for each behavior, as CanonicalProgram
+ * finds it, so that a program that only looks different from one already
+ * built, from a file or from Mutator, runs the same code and compiled class.
+ */
+public final class SpeciesCache {
+
+	private static final SpeciesCache shared = new SpeciesCache();
+
+	// what was last read from one path
+	private static class Entry {
+		final long modified;
+		final long length;
+		final Parsed parsed;
+
+		Entry(long modified, long length, Parsed parsed) {
+			this.modified = modified;
+			this.length = length;
+			this.parsed = parsed;
+		}
+	}
+
+	// one parsed file contents
+	private static class Parsed {
+		final byte[] contents;
+		final Species template;
+
+		Parsed(byte[] contents, Species template) {
+			this.contents = contents;
+			this.template = template;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> byPath = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<Long, Parsed> byContents = new ConcurrentHashMap<Long, Parsed>();
+
+	// the first species seen with each behavior, while it is in use
+	private final ConcurrentHashMap<CanonicalProgram, WeakReference<Species>> byBehavior =
+			new ConcurrentHashMap<CanonicalProgram, WeakReference<Species>>();
+	private final AtomicInteger purgeAt = new AtomicInteger(1024);
+
+	/**
+	 * Return the cache shared by the whole program.
+	 */
+	public static SpeciesCache shared() {
+		return shared;
+	}
+
+	/**
+	 * Return the species described in a file, parsing the file only if it has
+	 * not been seen with its current modification time and length.
+	 *
+	 * @return the template species, which must not be registered.
+	 * @throws FileNotFoundException if the file cannot be opened
+	 * @throws IllegalArgumentException if the file is not a valid species
+	 */
+	public Species template(File file) throws FileNotFoundException {
+		String path = file.getAbsolutePath();
+		long modified = file.lastModified();
+		long length = file.length();
+		Entry entry = byPath.get(path);
+		if (entry != null && modified != 0 && entry.modified == modified && entry.length == length) {
+			return entry.parsed.template;
+		}
+
+		byte[] contents = read(file);
+		long hash = hash(contents);
+		Parsed parsed = byContents.get(hash);
+		if (parsed == null || !Arrays.equals(parsed.contents, contents)) {
+			parsed = new Parsed(contents, SpeciesParser.parse(new String(contents, StandardCharsets.UTF_8)));
+			byContents.put(hash, parsed);
+		}
+		byPath.put(path, new Entry(modified, contents.length, parsed));
+		return parsed.template;
+	}
+
+	/**
+	 * Return a species whose program behaves exactly like that of species, or
+	 * null if none has been seen, in which case species becomes the one
+	 * returned for that behavior. Species are held weakly, so behaviors no
+	 * longer in use, like those of discarded mutants, are forgotten.
+	 *
+	 * @pre species is fully built, since other threads may be handed it.
+	 */
+	Species sameBehavior(Species species) {
+		CanonicalProgram key = species.behavior();
+		WeakReference<Species> mine = new WeakReference<Species>(species);
+		while (true) {
+			WeakReference<Species> ref = byBehavior.get(key);
+			Species found = (ref == null) ? null : ref.get();
+			if (found != null) {
+				return found;
+			}
+			boolean claimed = (ref == null) ? byBehavior.putIfAbsent(key, mine) == null
+					: byBehavior.replace(key, ref, mine);
+			if (claimed) {
+				purge();
+				return null;
+			}
+		}
+	}
+
+	/*
+	 * Drop the behaviors whose species have been collected, once the map has
+	 * doubled since it was last purged.
+	 */
+	private void purge() {
+		int limit = purgeAt.get();
+		if (byBehavior.size() < limit || !purgeAt.compareAndSet(limit, Integer.MAX_VALUE)) {
+			return;
+		}
+		Iterator<Map.Entry<CanonicalProgram, WeakReference<Species>>> entries = byBehavior.entrySet().iterator();
+		while (entries.hasNext()) {
+			if (entries.next().getValue().get() == null) {
+				entries.remove();
+			}
+		}
+		purgeAt.set(Math.max(1024, 2 * byBehavior.size()));
+	}
+
+	/**
+	 * Parse the given files in parallel on the common ForkJoinPool, so that
+	 * loading them afterwards finds them all in the cache.
+	 *
+	 * @throws FileNotFoundException if one of the files cannot be opened
+	 * @throws IllegalArgumentException if one of them is not a valid species
+	 */
+	public void preload(File[] files) throws FileNotFoundException {
+		Preload[] tasks = new Preload[files.length];
+		for (int i = 0; i < files.length; i++) {
+			tasks[i] = new Preload(files[i]);
+		}
+		ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		for (Preload task : tasks) {
+			if (task.missing != null) {
+				throw task.missing;
+			}
+		}
+	}
+
+	/*
+	 * Parses one file, keeping a FileNotFoundException for preload to throw.
+	 */
+	private class Preload extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final File file;
+		FileNotFoundException missing;
+
+		Preload(File file) {
+			this.file = file;
+		}
+
+		protected void compute() {
+			try {
+				template(file);
+			} catch (FileNotFoundException e) {
+				missing = e;
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(file.getPath() + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/*
+	 * Reads the whole file.
+	 */
+	private static byte[] read(File file) throws FileNotFoundException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return in.readAllBytes();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// the file has been read, nothing more to do
+			}
+		}
+	}
+
+	/*
+	 * 64-bit FNV-1a hash of the file contents.
+	 */
+	private static long hash(byte[] contents) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : contents) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,171 @@
+package darwin;
+
+import java.util.ArrayList;
+
+/**
+ * Reads the text of a species file in one pass over its characters.
+ *
+ * A species file holds the species name on the first line, its color on the
+ * second, and then one instruction per line up to the first blank line or the
+ * end of the file. Anything after the blank line is a comment. Whitespace
+ * around a line, and between an instruction and its address, is ignored, and
+ * lines may end in "\r\n". Mnemonics are matched in place, so the only
+ * objects made are the name, the color and the program.
+ */
+public final class SpeciesParser {
+
+	// MNEMONICS[op] is the name of opcode op
+	private static final String[] MNEMONICS = {
+			null, "hop", "left", "right", "infect", "ifempty", "ifwall", "ifsame", "ifenemy", "ifrandom",
+			"go", "if2enemy"};
+
+	private final CharSequence text;
+	private int at; // the next character to read
+	private int line; // the number of the line being read
+
+	private SpeciesParser(CharSequence text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parse the text of a species file.
+	 *
+	 * @return a new, unregistered species.
+	 * @throws IllegalArgumentException if the name or color is missing, an
+	 *         instruction is not recognized, or the program is not valid as
+	 *         checked by ProgramAnalysis
+	 */
+	public static Species parse(CharSequence text) {
+		SpeciesParser parser = new SpeciesParser(text);
+		String name = parser.header("name");
+		String color = parser.header("color");
+		ArrayList<Instruction> program = new ArrayList<Instruction>();
+		int packed;
+		while ((packed = parser.instruction()) != 0) {
+			program.add(new Instruction(PackedCode.opcodeOf(packed), PackedCode.addressOf(packed)));
+		}
+		return new Species(name, color, program);
+	}
+
+	/*
+	 * Reads a line holding the name or color.
+	 */
+	private String header(String what) {
+		line++;
+		int end = lineEnd();
+		int start = skipSpace(at, end);
+		int last = trimEnd(start, end);
+		at = next(end);
+		if (start == last) {
+			throw new IllegalArgumentException("line " + line + ": the species " + what + " is missing.");
+		}
+		return text.subSequence(start, last).toString();
+	}
+
+	/*
+	 * Reads the next instruction, returning it packed, or 0 at a blank line
+	 * or the end of the text.
+	 */
+	private int instruction() {
+		if (at >= text.length()) {
+			return 0;
+		}
+		line++;
+		int end = lineEnd();
+		int start = skipSpace(at, end);
+		int last = trimEnd(start, end);
+		at = next(end);
+		if (start == last) {
+			return 0;
+		}
+
+		int wordEnd = start;
+		while (wordEnd < last && !isSpace(text.charAt(wordEnd))) {
+			wordEnd++;
+		}
+		int op = opcode(start, wordEnd);
+		if (op == 0) {
+			throw unknown(start, last);
+		}
+
+		int digits = skipSpace(wordEnd, last);
+		if (digits == last) {
+			if (op >= Instruction.IFEMPTY) {
+				throw new IllegalArgumentException("line " + line + ": " + MNEMONICS[op] + " needs an address.");
+			}
+			return PackedCode.pack(op, 0);
+		}
+		if (op != Instruction.INFECT && op < Instruction.IFEMPTY) {
+			throw unknown(start, last);
+		}
+		int address = 0;
+		for (int i = digits; i < last; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9' || address > (Integer.MAX_VALUE >>> PackedCode.OPCODE_BITS) / 10) {
+				throw unknown(start, last);
+			}
+			address = address * 10 + (c - '0');
+		}
+		return PackedCode.pack(op, address);
+	}
+
+	/*
+	 * Returns the opcode whose mnemonic is text[start, end), or 0.
+	 */
+	private int opcode(int start, int end) {
+		int length = end - start;
+		for (int op = 1; op < MNEMONICS.length; op++) {
+			String mnemonic = MNEMONICS[op];
+			if (mnemonic.length() != length) {
+				continue;
+			}
+			int i = 0;
+			while (i < length && text.charAt(start + i) == mnemonic.charAt(i)) {
+				i++;
+			}
+			if (i == length) {
+				return op;
+			}
+		}
+		return 0;
+	}
+
+	private IllegalArgumentException unknown(int start, int end) {
+		return new IllegalArgumentException(
+				"line " + line + ": unknown instruction '" + text.subSequence(start, end) + "'.");
+	}
+
+	/*
+	 * Returns the index of the newline ending the current line, or the
+	 * length of the text.
+	 */
+	private int lineEnd() {
+		int end = at;
+		while (end < text.length() && text.charAt(end) != '\n') {
+			end++;
+		}
+		return end;
+	}
+
+	private int next(int lineEnd) {
+		return Math.min(lineEnd + 1, text.length());
+	}
+
+	private int skipSpace(int from, int end) {
+		while (from < end && isSpace(text.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && isSpace(text.charAt(end - 1))) {
+			end--;
+		}
+		return end;
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\f';
+	}
+}
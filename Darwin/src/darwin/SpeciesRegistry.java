@@ -0,0 +1,188 @@
+package darwin;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps one Species object per species file and gives every registered species
+ * a small integer id. Ids are dense: the first species registered gets 0, the
+ * next 1, and so on, so they can index arrays. Creatures compare these ids
+ * instead of species names.
+ * 
+ * A species belongs to at most one registry. Species that are created directly
+ * and never registered are added to the shared registry when the first
+ * Creature of that species is made. The mutants that arise in a World are
+ * kept in a registry of that world's own, whose ids start high enough never
+ * to clash with those of the shared registry.
+ */
+public class SpeciesRegistry {
+
+	private static final SpeciesRegistry shared = new SpeciesRegistry();
+
+	private final int firstId;
+	private ArrayList<Species> byId = new ArrayList<Species>();
+	private HashMap<String, Species> byFilename = new HashMap<String, Species>();
+	private boolean strict;
+
+	/**
+	 * Create an empty registry whose ids start at 0.
+	 */
+	public SpeciesRegistry() {
+		this(0);
+	}
+
+	/*
+	 * Create an empty registry whose ids start at firstId.
+	 */
+	SpeciesRegistry(int firstId) {
+		this.firstId = firstId;
+	}
+
+	/**
+	 * Return the registry shared by the whole program.
+	 */
+	public static SpeciesRegistry shared() {
+		return shared;
+	}
+
+	/**
+	 * Sets whether files whose programs have an action-free cycle are
+	 * rejected. Creatures of such a species may loop without acting until
+	 * their budget runs out, so tools that compare species, such as
+	 * Tournament and Evolution, reject them. Otherwise only a warning is
+	 * printed. Files loaded before are not checked again.
+	 */
+	public synchronized void setStrict(boolean strict) {
+		this.strict = strict;
+	}
+
+	/**
+	 * Returns whether files with an action-free cycle are rejected.
+	 */
+	public synchronized boolean isStrict() {
+		return strict;
+	}
+
+	/**
+	 * Return the species described in the given file, reading the file only the
+	 * first time it is asked for. The file is parsed through
+	 * SpeciesCache.shared(), and the species returned is a copy of the cached
+	 * template. If creatures of the species may loop without acting, the file
+	 * is rejected in strict mode and a warning is printed otherwise.
+	 * 
+	 * @throws FileNotFoundException if the file cannot be opened
+	 * @throws IllegalArgumentException if the file's program is not valid,
+	 *         or in strict mode has an action-free cycle
+	 */
+	public synchronized Species load(String filename) throws FileNotFoundException {
+		Species species = byFilename.get(filename);
+		if (species == null) {
+			Species template;
+			try {
+				template = SpeciesCache.shared().template(new File(filename));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(filename + ": " + e.getMessage(), e);
+			}
+			species = template.copy();
+			int[] cycle = species.analysis().actionFreeCycle();
+			if (cycle != null) {
+				String problem = filename + ": steps " + Arrays.toString(cycle) + " can repeat without an action.";
+				if (strict) {
+					throw new IllegalArgumentException(problem);
+				}
+				System.err.println("Warning: " + problem);
+			}
+			register(species);
+			byFilename.put(filename, species);
+		}
+		return species;
+	}
+
+	/**
+	 * Load every ".txt" file in a directory, parsing the files in parallel.
+	 * Species are registered in the order of their file names, so they get the
+	 * same ids whichever file is parsed first.
+	 * 
+	 * @return the species, in file name order.
+	 * @throws FileNotFoundException if the directory cannot be listed or a
+	 *         file cannot be opened
+	 * @throws IllegalArgumentException if a file's program is not valid,
+	 *         or in strict mode has an action-free cycle
+	 */
+	public List<Species> loadAll(File directory) throws FileNotFoundException {
+		File[] files = speciesFiles(directory);
+		SpeciesCache.shared().preload(files);
+
+		ArrayList<Species> loaded = new ArrayList<Species>(files.length);
+		for (File file : files) {
+			loaded.add(load(file.getPath()));
+		}
+		return loaded;
+	}
+
+	/**
+	 * Return the ".txt" files of a directory, sorted by name.
+	 * 
+	 * @throws FileNotFoundException if the directory cannot be listed
+	 */
+	public static File[] speciesFiles(File directory) throws FileNotFoundException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".txt");
+			}
+		});
+		if (files == null) {
+			throw new FileNotFoundException(directory + " is not a directory.");
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Give species the next free id.
+	 * 
+	 * @return the id.
+	 * @throws IllegalArgumentException if the species already has an id
+	 */
+	public synchronized int register(Species species) {
+		if (species.getId() >= 0) {
+			throw new IllegalArgumentException("species is already registered.");
+		}
+		int id = firstId + byId.size();
+		species.setId(id);
+		byId.add(species);
+		return id;
+	}
+
+	/**
+	 * Return the id of species, giving it the next free id if it has none.
+	 * Safe to call for the same species from several threads at once.
+	 * 
+	 * @return the id.
+	 */
+	public synchronized int idOf(Species species) {
+		if (species.getId() < 0) {
+			register(species);
+		}
+		return species.getId();
+	}
+
+	/**
+	 * Return the species with the given id.
+	 * 
+	 * @pre the species with that id is registered here.
+	 */
+	public synchronized Species get(int id) {
+		return byId.get(id - firstId);
+	}
+
+	/**
+	 * Return the number of registered species.
+	 */
+	public synchronized int size() {
+		return byId.size();
+	}
+}
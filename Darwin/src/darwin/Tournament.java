@@ -0,0 +1,579 @@
+package darwin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A headless round-robin between the species of a roster. Every pair of
+ * species meets once for each seed, and optionally every group of three or
+ * four as well. Each group plays the same seeds, so the groups are compared on
+ * the same starting positions. The matches are played on a ForkJoinPool: a
+ * task per group forks a task per seed, or per batch of seeds played on a
+ * BatchEngine, and idle threads steal whatever is left.
+ *
+ * A match is won by the species with the most survivors; species that tie for
+ * the most share the win. A species' win rate is its share of wins over the
+ * matches it played, reported with a Wilson score interval.
+ */
+public class Tournament {
+
+	/** z for a two-sided 95% interval. */
+	public static final double Z95 = 1.959964;
+
+	private final Species[] roster;
+	private final String[] labels;
+	private final DarwinConfig config;
+	private int seeds = 10;
+	private int largestMix = 2;
+	private int batchSize = 1;
+	private SequentialTest earlyStop; // null to play every seed
+	private MatchCache cache; // null to play every match
+	private ResultStore store; // null to keep no record
+	private int matchesPlayed;
+
+	/**
+	 * The record of one species over a tournament.
+	 */
+	public static class Standing {
+		private final String label;
+		private int games;
+		private double score;
+		private long survivors;
+
+		Standing(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * Returns the name the species was entered under.
+		 */
+		public String label() {
+			return label;
+		}
+
+		/**
+		 * Returns the number of matches the species played.
+		 */
+		public int games() {
+			return games;
+		}
+
+		/**
+		 * Returns the wins of the species, counting shared wins by their share.
+		 */
+		public double score() {
+			return score;
+		}
+
+		/**
+		 * Returns score() / games(), or 0 if no games were played.
+		 */
+		public double winRate() {
+			return (games == 0) ? 0 : score / games;
+		}
+
+		/**
+		 * Returns the 95% Wilson interval around winRate().
+		 *
+		 * @return the lower and upper bounds.
+		 */
+		public double[] interval() {
+			return wilson(score, games, Z95);
+		}
+
+		/**
+		 * Returns the average number of creatures left at the end of a match.
+		 */
+		public double meanSurvivors() {
+			return (games == 0) ? 0 : (double) survivors / games;
+		}
+
+		void add(MatchResult result, int i) {
+			games++;
+			score += result.score(i);
+			survivors += result.survivors(i);
+		}
+	}
+
+	/**
+	 * Create a tournament between the species of roster, entered under the
+	 * given labels, with the world settings and seed of config.
+	 *
+	 * @throws IllegalArgumentException if there are fewer than two species
+	 *         or the labels do not match the roster
+	 */
+	public Tournament(Species[] roster, String[] labels, DarwinConfig config) {
+		if (roster.length < 2) {
+			throw new IllegalArgumentException("a tournament needs at least two species.");
+		}
+		if (labels.length != roster.length) {
+			throw new IllegalArgumentException("there must be one label per species.");
+		}
+		this.roster = roster.clone();
+		this.labels = labels.clone();
+		this.config = config;
+	}
+
+	/**
+	 * Sets the number of seeds each group plays.
+	 *
+	 * @throws IllegalArgumentException if seeds is not positive
+	 */
+	public void setSeeds(int seeds) {
+		if (seeds <= 0) {
+			throw new IllegalArgumentException("seeds must be positive.");
+		}
+		this.seeds = seeds;
+	}
+
+	/**
+	 * Sets the largest group that plays: 2 for pairs only, 3 to add every
+	 * group of three, 4 to add every group of four as well.
+	 *
+	 * @throws IllegalArgumentException if largestMix is not 2, 3 or 4
+	 */
+	public void setLargestMix(int largestMix) {
+		if (largestMix < 2 || largestMix > 4) {
+			throw new IllegalArgumentException("mixes must have 2 to 4 species.");
+		}
+		this.largestMix = largestMix;
+	}
+
+	/**
+	 * Sets how many of a group's seeds are played together on one
+	 * BatchEngine. With 1, the default, every match is played on its own
+	 * GridEngine. The results, rounds played included, are the same either
+	 * way.
+	 *
+	 * @throws IllegalArgumentException if batchSize is not positive
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batch size must be positive.");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Stops playing a pair as soon as test names the stronger species, rather
+	 * than playing every seed. Seeds are played in order, a batch at a time,
+	 * and the test is applied after each match, so where a pair stops does not
+	 * depend on the batch size or the number of threads. Matches of three or
+	 * four species always play every seed.
+	 *
+	 * @param test the test to apply, or null to play every seed
+	 */
+	public void setEarlyStop(SequentialTest test) {
+		earlyStop = test;
+	}
+
+	/**
+	 * Looks matches up in cache before playing them, and records those
+	 * played there.
+	 *
+	 * @param cache the cache to use, or null to play every match
+	 */
+	public void setCache(MatchCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Adds a record of every match played, or looked up, to store, under the
+	 * labels of the species. Records are added in the same fixed order the
+	 * standings are tallied in.
+	 *
+	 * @param store the store to add to, or null to keep no record
+	 */
+	public void setStore(ResultStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Returns the number of matches the last run played.
+	 */
+	public int matchesPlayed() {
+		return matchesPlayed;
+	}
+
+	/**
+	 * Returns the groups that play, as indices into the roster: every pair,
+	 * then every group of three and four up to the largest mix, each in
+	 * increasing order.
+	 */
+	public List<int[]> groups() {
+		ArrayList<int[]> groups = new ArrayList<int[]>();
+		for (int k = 2; k <= Math.min(largestMix, roster.length); k++) {
+			addGroups(groups, new int[k], 0, 0);
+		}
+		return groups;
+	}
+
+	/*
+	 * Adds every increasing choice of the rest of group from first on.
+	 */
+	private void addGroups(List<int[]> groups, int[] group, int filled, int first) {
+		if (filled == group.length) {
+			groups.add(group.clone());
+			return;
+		}
+		for (int s = first; s <= roster.length - (group.length - filled); s++) {
+			group[filled] = s;
+			addGroups(groups, group, filled + 1, s + 1);
+		}
+	}
+
+	/**
+	 * Returns the seeds every group plays, drawn from the config's seed.
+	 */
+	public long[] seeds() {
+		SplittableRandom rand = new SplittableRandom(config.seed());
+		long[] result = new long[seeds];
+		for (int i = 0; i < seeds; i++) {
+			result[i] = rand.nextLong();
+		}
+		return result;
+	}
+
+	/**
+	 * Play every match on pool.
+	 *
+	 * @return the standings, best win rate first.
+	 * @throws UncheckedIOException if the store cannot be written
+	 */
+	public List<Standing> run(ForkJoinPool pool) {
+		List<int[]> groups = groups();
+		long[] seeds = seeds();
+		MatchResult[][] results = new MatchResult[groups.size()][seeds.length];
+		long[][] nanos = new long[groups.size()][seeds.length];
+
+		final GroupTask[] tasks = new GroupTask[groups.size()];
+		for (int g = 0; g < tasks.length; g++) {
+			tasks[g] = new GroupTask(members(groups.get(g)), seeds, results[g], nanos[g]);
+		}
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+
+		// tally in a fixed order, whichever thread played what
+		ArrayList<Standing> standings = new ArrayList<Standing>();
+		for (int s = 0; s < roster.length; s++) {
+			standings.add(new Standing(labels[s]));
+		}
+		matchesPlayed = 0;
+		try {
+			int[] ids = new int[roster.length];
+			for (int s = 0; store != null && s < roster.length; s++) {
+				ids[s] = store.idOf(labels[s]);
+			}
+			for (int g = 0; g < results.length; g++) {
+				int[] group = groups.get(g);
+				int[] groupIds = new int[group.length];
+				for (int i = 0; i < group.length; i++) {
+					groupIds[i] = ids[group[i]];
+				}
+				for (int k = 0; k < seeds.length; k++) {
+					MatchResult result = results[g][k];
+					if (result == null) {
+						// the pair was decided before this seed
+						break;
+					}
+					matchesPlayed++;
+					for (int i = 0; i < group.length; i++) {
+						standings.get(group[i]).add(result, i);
+					}
+					if (store != null) {
+						store.add(groupIds, seeds[k], result.rounds(), result, nanos[g][k]);
+					}
+				}
+			}
+			if (store != null) {
+				store.flush();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Collections.sort(standings, new Comparator<Standing>() {
+			public int compare(Standing a, Standing b) {
+				return Double.compare(b.winRate(), a.winRate());
+			}
+		});
+		return standings;
+	}
+
+	private Species[] members(int[] group) {
+		Species[] members = new Species[group.length];
+		for (int i = 0; i < group.length; i++) {
+			members[i] = roster[group[i]];
+		}
+		return members;
+	}
+
+	/*
+	 * Plays one group on every seed, a forked task per batch of seeds, or for
+	 * a pair under an early stop, one batch after another until the test
+	 * decides. Seeds after the deciding match are left null.
+	 */
+	private class GroupTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Species[] members;
+		private final long[] seeds;
+		private final MatchResult[] results;
+		private final long[] nanos;
+
+		GroupTask(Species[] members, long[] seeds, MatchResult[] results, long[] nanos) {
+			this.members = members;
+			this.seeds = seeds;
+			this.results = results;
+			this.nanos = nanos;
+		}
+
+		protected void compute() {
+			int batches = (seeds.length + batchSize - 1) / batchSize;
+			MatchTask[] tasks = new MatchTask[batches];
+			for (int b = 0; b < batches; b++) {
+				int from = b * batchSize;
+				Match[] matches = new Match[Math.min(batchSize, seeds.length - from)];
+				for (int i = 0; i < matches.length; i++) {
+					matches[i] = new Match(members, config, seeds[from + i]);
+				}
+				tasks[b] = new MatchTask(matches, results, nanos, from, cache);
+			}
+			if (earlyStop == null || members.length != 2) {
+				invokeAll(tasks);
+				return;
+			}
+
+			int wins = 0;
+			int losses = 0;
+			for (MatchTask task : tasks) {
+				task.compute();
+				for (int i = task.from; i < task.from + task.matches.length; i++) {
+					int winner = results[i].winner();
+					if (winner == 0) {
+						wins++;
+					} else if (winner == 1) {
+						losses++;
+					}
+					if (earlyStop.decide(wins, losses) != SequentialTest.UNDECIDED) {
+						Arrays.fill(results, i + 1, results.length, null);
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Plays matches into results[from ...], together if there are several,
+	 * looking up those the cache knows, and times them into nanos[from ...].
+	 * Matches played together share the time evenly.
+	 */
+	private static class MatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Match[] matches;
+		private final MatchResult[] results;
+		private final long[] nanos;
+		private final int from;
+		private final MatchCache cache;
+
+		MatchTask(Match[] matches, MatchResult[] results, long[] nanos, int from, MatchCache cache) {
+			this.matches = matches;
+			this.results = results;
+			this.nanos = nanos;
+			this.from = from;
+			this.cache = cache;
+		}
+
+		protected void compute() {
+			if (cache == null) {
+				play(matches, from);
+				return;
+			}
+			int[] missing = new int[matches.length];
+			int n = 0;
+			for (int i = 0; i < matches.length; i++) {
+				long start = System.nanoTime();
+				results[from + i] = cache.get(matches[i]);
+				nanos[from + i] = System.nanoTime() - start;
+				if (results[from + i] == null) {
+					missing[n++] = i;
+				}
+			}
+			if (n == matches.length) {
+				play(matches, from);
+			} else {
+				for (int j = 0; j < n; j++) {
+					play(new Match[] {matches[missing[j]]}, from + missing[j]);
+				}
+			}
+			for (int j = 0; j < n; j++) {
+				cache.put(matches[missing[j]], results[from + missing[j]]);
+			}
+		}
+
+		private void play(Match[] matches, int from) {
+			long start = System.nanoTime();
+			if (matches.length == 1) {
+				results[from] = matches[0].play();
+			} else {
+				MatchResult[] played = BatchEngine.play(matches);
+				System.arraycopy(played, 0, results, from, played.length);
+			}
+			Arrays.fill(nanos, from, from + matches.length, (System.nanoTime() - start) / matches.length);
+		}
+	}
+
+	/**
+	 * Returns the Wilson score interval for a proportion of score successes in
+	 * games trials.
+	 *
+	 * @param z the normal quantile, Z95 for a 95% interval
+	 * @return the lower and upper bounds, {0, 1} if games is 0.
+	 */
+	public static double[] wilson(double score, int games, double z) {
+		if (games == 0) {
+			return new double[] {0, 1};
+		}
+		double p = score / games;
+		double z2 = z * z;
+		double denominator = 1 + z2 / games;
+		double center = (p + z2 / (2 * games)) / denominator;
+		double half = z * Math.sqrt(p * (1 - p) / games + z2 / (4.0 * games * games)) / denominator;
+		return new double[] {Math.max(0, center - half), Math.min(1, center + half)};
+	}
+
+	/**
+	 * Runs a tournament between the species files of a directory, by default
+	 * ./Creatures, and prints the standings. A species whose program can loop
+	 * without acting is rejected. Besides the options of DarwinConfig.parse it
+	 * takes
+	 *
+	 * <pre>
+	 *  -seeds n   every group plays n seeds (default 10)
+	 *  -mix k     also play every group of up to k species, k = 3 or 4
+	 *  -batch n   play n seeds of a group at a time on a BatchEngine
+	 *  -sprt c    stop a pair once its winner is known with confidence c
+	 *  -margin m  the win rate margin, above 1/2, the test looks for
+	 *             (default 0.1)
+	 *  -cache f   look matches up in the MatchCache in file f
+	 *  -store d   add a record of every match to the ResultStore in
+	 *             directory d
+	 * </pre>
+	 *
+	 * and "-threads n" sets the size of the pool the matches are played on.
+	 */
+	public static void main(String[] args) {
+		try {
+			int seeds = 10;
+			int largestMix = 2;
+			int batchSize = 1;
+			double confidence = 0;
+			double margin = 0.1;
+			String cacheFile = null;
+			String storeDirectory = null;
+			ArrayList<String> rest = new ArrayList<String>();
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-seeds")) {
+					DarwinConfig.requireValues(args, i, 1);
+					seeds = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-mix")) {
+					DarwinConfig.requireValues(args, i, 1);
+					largestMix = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-batch")) {
+					DarwinConfig.requireValues(args, i, 1);
+					batchSize = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-sprt")) {
+					DarwinConfig.requireValues(args, i, 1);
+					confidence = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-margin")) {
+					DarwinConfig.requireValues(args, i, 1);
+					margin = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-cache")) {
+					DarwinConfig.requireValues(args, i, 1);
+					cacheFile = args[++i];
+				} else if (args[i].equals("-store")) {
+					DarwinConfig.requireValues(args, i, 1);
+					storeDirectory = args[++i];
+				} else {
+					rest.add(args[i]);
+				}
+			}
+			DarwinConfig config = new DarwinConfig();
+			String[] dirs = config.parse(rest.toArray(new String[rest.size()]));
+			File directory = new File((dirs.length > 0) ? dirs[0] : "./Creatures");
+
+			SpeciesRegistry.shared().setStrict(true);
+			List<Species> loaded = SpeciesRegistry.shared().loadAll(directory);
+			Species[] roster = loaded.toArray(new Species[loaded.size()]);
+			File[] files = SpeciesRegistry.speciesFiles(directory);
+			String[] labels = new String[roster.length];
+			for (int s = 0; s < roster.length; s++) {
+				String name = files[s].getName();
+				labels[s] = name.substring(0, name.length() - ".txt".length());
+			}
+
+			Tournament tournament = new Tournament(roster, labels, config);
+			tournament.setSeeds(seeds);
+			tournament.setLargestMix(largestMix);
+			tournament.setBatchSize(batchSize);
+			if (confidence > 0) {
+				tournament.setEarlyStop(SequentialTest.withConfidence(confidence, margin));
+			}
+			MatchCache cache = (cacheFile != null) ? new MatchCache(new File(cacheFile), 100000) : null;
+			tournament.setCache(cache);
+			ResultStore store = (storeDirectory != null) ? new ResultStore(new File(storeDirectory), 4096) : null;
+			tournament.setStore(store);
+			int threads = (config.threads() > 0) ? config.threads() : Runtime.getRuntime().availableProcessors();
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			List<Standing> standings;
+			try {
+				standings = tournament.run(pool);
+			} finally {
+				pool.shutdown();
+				if (cache != null) {
+					cache.close();
+				}
+				if (store != null) {
+					store.close();
+				}
+			}
+
+			System.out.println(String.format("%-20s %6s %8s %8s %17s %9s", "species", "games", "wins", "win rate",
+					"95% interval", "survivors"));
+			for (Standing standing : standings) {
+				double[] interval = standing.interval();
+				System.out.println(String.format("%-20s %6d %8.1f %8.3f   [%.3f, %.3f] %9.1f", standing.label(),
+						standing.games(), standing.score(), standing.winRate(), interval[0], interval[1],
+						standing.meanSurvivors()));
+			}
+			System.out.println(tournament.matchesPlayed() + " matches played");
+			if (cache != null) {
+				System.out.println(cache.hits() + " looked up in the cache");
+			}
+			if (store != null) {
+				System.out.println(store.size() + " matches in the store");
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("File not found");
+			System.err.println(e.getMessage());
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		} catch (UncheckedIOException e) {
+			System.err.println(e.getCause().getMessage());
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+}
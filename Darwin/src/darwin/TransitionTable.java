@@ -0,0 +1,185 @@
+package darwin;
+
+import java.util.Arrays;
+
+/**
+ * A precomputed answer to "what does a creature do this turn" for one species.
+ * 
+ * However many tests a program chains together, the action a creature reaches
+ * in a turn depends only on the step it starts at, on what it can sense, and
+ * on the random bits its ifrandom instructions draw. What it can sense is the
+ * square in front (wall, empty, same species or enemy) and whether the square
+ * after that holds an enemy, eight combinations in all. The table maps every
+ * step and sensor combination to the step of the action reached and the
+ * number of test instructions executed on the way, so a turn is one lookup.
+ * 
+ * A path through up to RANDOM_BITS ifrandom instructions is looked up by the
+ * turn's low random bits, the same bits GridEngine.decide would consume. Paths
+ * that draw more random bits, never reach an action, or hit an invalid
+ * instruction are marked FALLBACK and must be interpreted.
+ */
+public final class TransitionTable {
+
+	/** Entry for paths the table does not cover. */
+	public static final int FALLBACK = 0;
+
+	/** The number of ifrandom outcomes the table can resolve in one turn. */
+	public static final int RANDOM_BITS = 4;
+
+	/** Sensor value of a wall in front. */
+	public static final int SENSE_WALL = 0;
+	/** Sensor value of an empty square in front. */
+	public static final int SENSE_EMPTY = 1;
+	/** Sensor value of a creature of the same species in front. */
+	public static final int SENSE_SAME = 2;
+	/** Sensor value of an enemy in front. */
+	public static final int SENSE_ENEMY = 3;
+	/** Added to the sensor value when the square two ahead holds an enemy. */
+	public static final int SENSE_ENEMY2 = 4;
+
+	private static final int SENSORS = 8;
+	private static final int RANDOM_CASES = 1 << RANDOM_BITS;
+
+	// entries[pc * SENSORS + sensor] is FALLBACK, a result (steps << 16 | pc),
+	// or -(1 + k) where randomEntries[k * RANDOM_CASES + bits] holds the result
+	// for each value of the low random bits
+	private final int[] entries;
+	private final int[] randomEntries;
+
+	private TransitionTable(int[] entries, int[] randomEntries) {
+		this.entries = entries;
+		this.randomEntries = randomEntries;
+	}
+
+	/**
+	 * Returns the entry for a creature starting at step pc with the given
+	 * sensor value and random bits. The bits are only read if
+	 * needsRandom(pc, sensor), so callers may skip drawing them otherwise.
+	 * 
+	 * @return FALLBACK, or (steps << 16) | actionPc.
+	 */
+	public int lookup(int pc, int sensor, long bits) {
+		int entry = entries[pc * SENSORS + sensor];
+		if (entry < 0) {
+			entry = randomEntries[(-1 - entry) * RANDOM_CASES + (int) (bits & (RANDOM_CASES - 1))];
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns whether the entry for pc and sensor depends on random bits.
+	 */
+	public boolean needsRandom(int pc, int sensor) {
+		return entries[pc * SENSORS + sensor] < 0;
+	}
+
+	/**
+	 * Returns the step of the action in a result entry.
+	 */
+	public static int actionPc(int entry) {
+		return entry & 0xFFFF;
+	}
+
+	/**
+	 * Returns the number of test instructions executed before the action in a
+	 * result entry.
+	 */
+	public static int steps(int entry) {
+		return entry >>> 16;
+	}
+
+	/**
+	 * Build the table for a packed program as returned by Species.code().
+	 * 
+	 * @throws IllegalArgumentException if the program is too long to table
+	 */
+	public static TransitionTable build(int[] code) {
+		if (code.length > 0xFFFF) {
+			throw new IllegalArgumentException("program is too long.");
+		}
+		int[] entries = new int[code.length * SENSORS];
+		int[] randomEntries = new int[16 * RANDOM_CASES];
+		int randomCount = 0;
+
+		for (int pc = 1; pc < code.length; pc++) {
+			for (int sensor = 0; sensor < SENSORS; sensor++) {
+				int[] used = new int[1];
+				int entry = walk(code, pc, sensor, 0, used);
+				if (used[0] == 0) {
+					entries[pc * SENSORS + sensor] = entry;
+					continue;
+				}
+
+				// the path draws random bits: resolve every combination
+				if ((randomCount + 1) * RANDOM_CASES > randomEntries.length) {
+					randomEntries = Arrays.copyOf(randomEntries, 2 * randomEntries.length);
+				}
+				for (int bits = 0; bits < RANDOM_CASES; bits++) {
+					randomEntries[randomCount * RANDOM_CASES + bits] = walk(code, pc, sensor, bits, used);
+				}
+				entries[pc * SENSORS + sensor] = -1 - randomCount;
+				randomCount++;
+			}
+		}
+		return new TransitionTable(entries, Arrays.copyOf(randomEntries, randomCount * RANDOM_CASES));
+	}
+
+	/*
+	 * Follow the program from pc with fixed sensors and random bits until an
+	 * action. Stores the number of random bits drawn in used[0].
+	 */
+	private static int walk(int[] code, int pc, int sensor, int bits, int[] used) {
+		int front = sensor & 3;
+		boolean enemy2 = (sensor & SENSE_ENEMY2) != 0;
+		used[0] = 0;
+
+		// with sensors and bits fixed the walk is determined by (pc, bits
+		// drawn), so a longer walk is going round in circles
+		int limit = code.length * (RANDOM_BITS + 1);
+		for (int steps = 0; steps <= limit && steps <= Short.MAX_VALUE; steps++) {
+			int instruction = code[pc];
+			int address = instruction >>> PackedCode.OPCODE_BITS;
+			boolean taken;
+
+			switch (ProgramOptimizer.unfused(instruction & PackedCode.OPCODE_MASK)) {
+				case Instruction.HOP :
+				case Instruction.LEFT :
+				case Instruction.RIGHT :
+				case Instruction.INFECT :
+					return (steps << 16) | pc;
+				case Instruction.IFEMPTY :
+					taken = front == SENSE_EMPTY;
+					break;
+				case Instruction.IFWALL :
+					taken = front == SENSE_WALL;
+					break;
+				case Instruction.IFSAME :
+					taken = front == SENSE_SAME;
+					break;
+				case Instruction.IFENEMY :
+					taken = front == SENSE_ENEMY;
+					break;
+				case Instruction.IFRANDOM :
+					if (used[0] == RANDOM_BITS) {
+						return FALLBACK;
+					}
+					taken = ((bits >>> used[0]) & 1) != 0;
+					used[0]++;
+					break;
+				case Instruction.GO :
+					taken = true;
+					break;
+				case Instruction.IF2ENEMY :
+					taken = enemy2;
+					break;
+				default :
+					return FALLBACK;
+			}
+			pc = taken ? address : pc + 1;
+			if (pc <= 0 || pc >= code.length) {
+				return FALLBACK;
+			}
+		}
+		return FALLBACK;
+	}
+}
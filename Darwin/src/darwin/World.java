@@ -1,5 +1,8 @@
 package darwin;
 
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
 /**
  * This class includes the functions necessary to keep track of the creatures in
  * a two-dimensional world. 
@@ -7,8 +10,34 @@ package darwin;
 
 public class World {
 	
-	// world is a matrix of Creatures
-	private Matrix<Creature> world;
+	// the squares of the world, numbered by grid, each holding a Creature
+	// or null
+	private Grid grid;
+	private Creature[] world;
+
+	/** The default number of instructions a creature may execute per turn. */
+	public static final int DEFAULT_INSTRUCTION_BUDGET = 1000;
+
+	// where the creatures in this world draw themselves
+	private RenderSink renderSink = WorldMapRenderSink.INSTANCE;
+
+	// how far a creature may get into its program in one turn
+	private int instructionBudget = DEFAULT_INSTRUCTION_BUDGET;
+	private BudgetPolicy budgetPolicy = BudgetPolicy.FORFEIT;
+
+	// the source of every ifrandom decision made in this world
+	private SplittableRandom random = new SplittableRandom();
+
+	// the chance that an infected creature becomes a mutant
+	private double mutationRate;
+
+	/** The id given to the first mutant to arise in a world. */
+	static final int FIRST_MUTANT_ID = 1 << 30;
+
+	// the mutants that have arisen in this world, by behavior. They are
+	// numbered apart from the shared registry and forgotten with the world.
+	private final SpeciesRegistry mutants = new SpeciesRegistry(FIRST_MUTANT_ID);
+	private final HashMap<CanonicalProgram, Species> mutantByBehavior = new HashMap<CanonicalProgram, Species>();
 	
 	/**
 	 * This function creates a new world consisting of width columns and height
@@ -16,28 +45,138 @@ public class World {
 	 * contains no objects.
 	 */
 	public World(int w, int h) {
-		// BE CAREFUL: think about how width/heights translates to row/col in a matrix
-
-		
-		// height = rows, width = columns
-		world = new Matrix<Creature>(h, w);
-
-		
-		
+		// width = columns (x), height = rows (y)
+		grid = new Grid(w, h);
+		world = new Creature[grid.size()];
 	}
 
 	/**
 	 * Returns the height of the world.
 	 */
 	public int height() {
-		return world.numRows();
+		return grid.height();
 	}
 
 	/**
 	 * Returns the width of the world.
 	 */
 	public int width() {
-		return world.numCols();
+		return grid.width();
+	}
+
+	/**
+	 * Returns the grid that numbers the squares of this world.
+	 */
+	public Grid grid() {
+		return grid;
+	}
+
+	/**
+	 * Returns the sink that creatures in this world send display updates to.
+	 * By default this is the WorldMap window.
+	 */
+	public RenderSink renderSink() {
+		return renderSink;
+	}
+
+	/**
+	 * Sets the sink that creatures in this world send display updates to.
+	 * Pass HeadlessRenderSink.INSTANCE to run without a display.
+	 */
+	public void setRenderSink(RenderSink renderSink) {
+		this.renderSink = renderSink;
+	}
+
+	/**
+	 * Returns the maximum number of instructions a creature may execute in one
+	 * turn.
+	 */
+	public int instructionBudget() {
+		return instructionBudget;
+	}
+
+	/**
+	 * Returns what happens to a creature that exceeds its instruction budget.
+	 */
+	public BudgetPolicy budgetPolicy() {
+		return budgetPolicy;
+	}
+
+	/**
+	 * Limits every creature in this world to budget instructions per turn, and
+	 * applies policy to creatures that reach the limit without acting.
+	 * 
+	 * @throws IllegalArgumentException if budget is not positive
+	 */
+	public void setInstructionBudget(int budget, BudgetPolicy policy) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("budget must be positive.");
+		}
+		instructionBudget = budget;
+		budgetPolicy = policy;
+	}
+
+	/**
+	 * Returns the random number generator creatures in this world use for
+	 * ifrandom. It is not thread safe.
+	 */
+	public SplittableRandom random() {
+		return random;
+	}
+
+	/**
+	 * Reseeds the random number generator, so that a simulation started from
+	 * the same creatures and seed makes the same ifrandom choices.
+	 */
+	public void setSeed(long seed) {
+		random = new SplittableRandom(seed);
+	}
+
+	/**
+	 * Returns the chance that a creature infected in this world becomes a
+	 * mutant of its infector's species rather than one of its own.
+	 */
+	public double mutationRate() {
+		return mutationRate;
+	}
+
+	/**
+	 * Sets the chance that an infected creature becomes a mutant, a new
+	 * species made by Mutator.mutate from the infector's. Mutations draw from
+	 * random(), so they replay with the seed like ifrandom does.
+	 * 
+	 * @throws IllegalArgumentException unless 0 <= rate <= 1
+	 */
+	public void setMutationRate(double rate) {
+		if (!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException("mutation rate must be between 0 and 1.");
+		}
+		mutationRate = rate;
+	}
+
+	/**
+	 * Returns the species a new mutant of parent belongs to: parent, or a
+	 * mutant that arose in this world before, if either behaves like mutant,
+	 * and otherwise mutant itself, which is given an id of this world's own.
+	 */
+	Species addMutant(Species parent, Species mutant) {
+		if (mutant.sameBehavior(parent)) {
+			return parent;
+		}
+		Species same = mutantByBehavior.get(mutant.behavior());
+		if (same != null) {
+			return same;
+		}
+		mutants.register(mutant);
+		mutantByBehavior.put(mutant.behavior(), mutant);
+		return mutant;
+	}
+
+	/**
+	 * Returns the number of distinct mutants that have arisen in this world.
+	 */
+	public int mutants() {
+		return mutants.size();
 	}
 
 	/**
@@ -60,25 +199,41 @@ public class World {
 		if (!inRange(pos)) {
 			throw new IllegalArgumentException("pos is not in range.");
 		} else {
-			world.set(pos.getY(), pos.getX(), e);
+			world[grid.index(pos.getX(), pos.getY())] = e;
 		}
 	}
 
+	/**
+	 * Set the square numbered cell to contain e.
+	 * 
+	 * @pre 0 <= cell < grid().size().
+	 */
+	public void set(int cell, Creature e) {
+		world[cell] = e;
+	}
+
 	/**
 	 * Return the contents of a position on the board.
 	 * 
 	 * @throws IllegalArgumentException if pos is not in range
 	 */
 	public Creature get(Position pos) {
-		// BE CAREFUL: think about how x,y translates to row/col in a matrix
 		if (!inRange(pos)) {
 			throw new IllegalArgumentException("pos is not in range.");
 		} else {
-			// y = row, x = column
-			return world.get(pos.getY(), pos.getX());
+			return world[grid.index(pos.getX(), pos.getY())];
 		}
 	}
 
+	/**
+	 * Return the contents of the square numbered cell.
+	 * 
+	 * @pre 0 <= cell < grid().size().
+	 */
+	public Creature get(int cell) {
+		return world[cell];
+	}
+
 
 	public static void main(String args[]) {
 		World w = new World(5, 6);
@@ -0,0 +1,29 @@
+package darwin;
+
+/**
+ * A RenderSink that forwards every update to the WorldMap window. Each call
+ * blocks until the square has been repainted, exactly as
+ * WorldMap.displaySquare does. Until WorldMap.createWorldMap has been called
+ * there is no window, and updates are dropped.
+ */
+public class WorldMapRenderSink implements RenderSink {
+
+	/** The shared instance; the sink has no state. */
+	public static final WorldMapRenderSink INSTANCE = new WorldMapRenderSink();
+
+	/**
+	 * Draw the square in the WorldMap window.
+	 */
+	public void displaySquare(Position pos, char c, int dir, String color) {
+		if (WorldMap.map == null) {
+			return;
+		}
+		WorldMap.displaySquare(pos, c, dir, color);
+	}
+
+	/**
+	 * Nothing is buffered, so there is nothing to publish.
+	 */
+	public void endRound() {
+	}
+}